@@ -11,10 +11,12 @@ import sim.util.distribution.*;
 import sim.field.grid.*;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.time.format.DateTimeFormatter;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.io.*;
+import java.nio.file.Paths;
 
 public class AgentCity extends SimState {
 
@@ -37,16 +39,8 @@ public class AgentCity extends SimState {
     final boolean LANE_POLICY;
     final long seed;
     public final int HOV_MIN;
-    public static final boolean SMART_TURNS = true;
-    public static final boolean AVOID_CONGESTION = true;
-    public static final boolean RESERVATION_PRIORITY = true;
-    public static final boolean RESERVATION_PRIORITY_SMALL = false;
-    public static final boolean PASSENGER_WARM_START = false;
-    public static final double WARM_START_RATE = 0.5;
-    public static final boolean CONSOLE_OUT = true;
-    public static final boolean FILE_OUT = false;
-    public static final int MAX_SPEED = 2;
-    public static final int REPORT_INTERVAL = 600;
+    // Behavior switches of this run, from its ScenarioConfig
+    public final ScenarioConfig config;
     //public static final int PASSENGER_POLLING_INTERVAL = 600;
     public static final double SECONDS_PER_STEP = 1;
     public static final double METERS_PER_CELL = 7.5;
@@ -63,6 +57,8 @@ public class AgentCity extends SimState {
     private FileWriter fw;
     private BufferedWriter bw;
     public PrintWriter fileout;
+    // Destination of console reports if not System.out
+    private PrintWriter reportOut;
 
     // Variables
     private int numVehicles;
@@ -80,6 +76,16 @@ public class AgentCity extends SimState {
 
     // Grid of agent locations
     public SparseGrid2D agentGrid;
+    /** Vehicle ID number at each cell of the grid or -1 if the cell is empty.
+     * Cells are indexed by {@link #getCellId(int, int)}.
+     */
+    public int[] occupancy;
+    /** Number of Vehicles in each Intersection by ID number. */
+    public int[] intersectionOccupants;
+    /** True if agentGrid should be kept in sync with occupancy. Only needed
+     * for display and collision checks.
+     */
+    public boolean updateAgentGrid = CHECK_FOR_COLLISIONS;
     // Grids of transportation network feature locations
     public IntGrid2D roadGrid;
     public IntGrid2D walkwayGrid;
@@ -87,21 +93,217 @@ public class AgentCity extends SimState {
     public IntGrid2D intersectionGrid;
     public IntGrid2D blockGrid;
 
+    // Static road network, shared with other runs on the same grid
+    public RoadNetwork network;
+    // Network to run on instead of the test grid, if any
+    private RoadNetwork map;
+    /** Runs on the provided network, such as one read from a
+     * {@link MapFile}, instead of the generated test grid. Vehicle density is
+     * still per block of the test grid, so the network gets density Vehicles
+     * for every {@link RoadNetwork#SPAWN_CELLS_PER_BLOCK} of its road cells
+     * outside intersections. Must be set before start.
+     */
+    public void setRoadNetwork(RoadNetwork network) { map = network; }
+    // Road cell topology
+    public RoadTopology roadTopology;
+    public SafeSpeedField safeSpeedField;
+
     // Array of Intersections
     public Intersection[] intersections;
     // Array of Intersection agents
     public IntersectionAgent[] intersectionAgents;
+    /** Gets the IntersectionAgent of this run controlling an Intersection. */
+    public IntersectionAgent getController(Intersection intersection) {
+        return intersectionAgents[intersection.idNum];
+    }
+    // Array of trip generators, empty if demand comes from a DemandEngine
+    public TripGenerator[] tripGenerators;
+    // City-wide trip generator, or null
+    public DemandEngine demandEngine;
+    // Origin-destination rates and rate profile for the DemandEngine
+    private double[][] odMatrix;
+    private double[] rateProfile;
+    private long profilePeriod = 1;
+    // Recorded trips to add instead of generated ones, or null
+    private String tripFile;
+    public TripReplay tripReplay;
+    /** Adds a Person for each trip of the provided {@link TripReplay} trip
+     * file instead of generating trips at each Intersection. A
+     * DemandEngine, if any, still runs alongside. Must be set before start.
+     */
+    public void setTripFile(String tripFile) { this.tripFile = tripFile; }
+    // Central dispatcher of empty Vehicles, or null
+    public DispatchAgent dispatcher;
+    /** Generates trips with a {@link DemandEngine} from the provided
+     * origin-destination matrix of trips per step, indexed by Intersection
+     * ID number, whatever the config. Every rate is scaled by the
+     * multiplier of the profile for the current period, cycling. The
+     * profile may be null. Must be set before start.
+     */
+    public void setDemand(double[][] odMatrix, double[] rateProfile,
+                          long profilePeriod) {
+        this.odMatrix = odMatrix;
+        this.rateProfile = rateProfile;
+        this.profilePeriod = profilePeriod;
+    }
+    // Arrays of Vehicles and their DriverAgents indexed by ID number
+    public Vehicle[] vehicles;
+    public DriverAgent[] drivers;
+    // Physical state of all Vehicles
+    public VehicleState vehicleState;
 
-    // Travelers
+    // Pool for the decide pass of two-phase stepping
+    private transient ForkJoinPool pool;
+
+    // Travelers, each knowing its index so removal is constant time
     private Bag travelers;
+    /** Removes a Person from the travelers by moving the last traveler into
+     * its place, the same order Bag.remove would leave.
+     */
     public boolean removeTraveler(Person person) {
-        return travelers.remove(person);
+        int i = person.travelerIndex;
+        if (i < 0 || i >= travelers.numObjs || travelers.objs[i] != person) {
+            return false;
+        }
+        travelers.remove(i);
+        if (i < travelers.numObjs) {
+            ((Person)travelers.objs[i]).travelerIndex = i;
+        }
+        person.travelerIndex = -1;
+        return true;
     }
+    /** Adds a Person to the travelers and, unless the schedule is batched,
+     * schedules it to step from the next step on.
+     */
     public boolean addTraveler(Person person) {
         //System.out.print(person.toString());
         //travelersInVehicle.add(person);
+        if (!isBatched()) {
+            person.stopper =
+                schedule.scheduleRepeating(person, TRIPGEN_SCHEDULE_NUM, 1);
+        }
+        person.travelerIndex = travelers.numObjs;
         return travelers.add(person);
     }
+    // Persons whose trips are over, kept for reuse
+    private Bag personPool;
+    /** Gets a Person for a new trip, reusing a finished one if any. */
+    public Person newPerson(int id, Intersection origin,
+                            Intersection destination) {
+        if (personPool.numObjs == 0) {
+            return new Person(id, origin, destination);
+        }
+        Person person = (Person)personPool.pop();
+        person.init(id, origin, destination);
+        return person;
+    }
+    /** Returns a Person whose trip is over, and who is no longer referenced
+     * by any traveler, Vehicle or queue, to the pool.
+     */
+    void releasePerson(Person person) {
+        personPool.add(person);
+    }
+    // Persons waiting in the queues of IntersectionAgents
+    private int numWaiting;
+    /** Gets the number of Persons waiting for or riding in a Vehicle. */
+    public int getNumTravelers() {
+        return travelers.numObjs + numWaiting
+            + (dispatcher == null ? 0 : dispatcher.getNumAssigned()
+               + dispatcher.getNumRequests());
+    }
+    // Vehicles that entered an Intersection with waiting Persons this step
+    private Bag arrivals;
+    /** Adds a new Person waiting at its origin. With event-driven boarding
+     * it boards a Vehicle holding a reservation there now or else waits in
+     * the queue of the origin, without being stepped, until a Vehicle
+     * enters. Otherwise it is a traveler that looks for a Vehicle on every
+     * step. With dispatch it is first sent a Vehicle, or held for the next
+     * batch, if there is one.
+     */
+    public void addPerson(Person person) {
+        long steps = schedule.getSteps();
+        if (dispatcher != null && dispatcher.isBatching()) {
+            // held by the dispatcher until matched
+            person.beginWaiting(steps);
+            dispatcher.addRequest(person);
+            return;
+        }
+        if (dispatcher != null
+            && dispatcher.requestVehicle(person.getOrigin(),
+                                         person.getDestination(),
+                                         person, steps) >= 0) {
+            // held by the dispatcher until its Vehicle arrives
+            person.beginWaiting(steps);
+            return;
+        }
+        waitForVehicle(person);
+    }
+    /** Adds a Person waiting at its origin for a passing Vehicle, as
+     * addPerson does without dispatch.
+     */
+    void waitForVehicle(Person person) {
+        long steps = schedule.getSteps();
+        if (!config.eventBoarding) {
+            person.endWaiting(steps);
+            addTraveler(person);
+            return;
+        }
+        IntersectionAgent origin = getController(person.getOrigin());
+        Bag vehicles = origin.getVehicles();
+        for (int i = 0; i < vehicles.numObjs; i++) {
+            if (person.boardWaiting((Vehicle)vehicles.objs[i], steps)) {
+                addTraveler(person);
+                return;
+            }
+        }
+        person.beginWaiting(steps);
+        origin.addWaiting(person);
+        numWaiting++;
+    }
+
+    /** Boards the queues of the Intersections entered this step onto the
+     * Vehicles that entered them.
+     */
+    private void boardArrivals() {
+        Vehicle vehicle;
+        Int2D loc;
+        for (int i = 0; i < arrivals.numObjs; i++) {
+            vehicle = (Vehicle)arrivals.objs[i];
+            loc = vehicle.getLocation();
+            IntersectionAgent agent =
+                intersectionAgents[intersectionGrid.field[loc.x][loc.y]];
+            numWaiting -= agent.boardWaiting(this, vehicle);
+        }
+        arrivals.clear();
+    }
+
+    /** True if each phase of the schedule is stepped by one Steppable
+     * instead of one Steppable per agent.
+     */
+    public boolean isBatched() {
+        return config.batchedStepping || config.twoPhaseStepping;
+    }
+
+    /** Shuffles the provided array in place with the random number
+     * generator of this simulation.
+     */
+    void shuffle(int[] order) {
+        shuffle(order, order.length);
+    }
+
+    /** Shuffles the first n elements of the provided array in place with
+     * the random number generator of this simulation.
+     */
+    void shuffle(int[] order, int n) {
+        int tmp;
+        int j;
+        for (int i = n - 1; i > 0; i--) {
+            j = random.nextInt(i + 1);
+            tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+    }
 
     /** Constructor default */
     public AgentCity(long seed) {
@@ -119,8 +321,19 @@ public class AgentCity extends SimState {
                      String outputFileName,
                      Double tripGenRate,
                      int hovMin) {
+        this(seed, grids, density, lanePolicy, outputFileName, tripGenRate,
+             hovMin, ScenarioConfig.DEFAULT);
+    }
+
+    /** Constructor with the behavior switches of the provided config */
+    public AgentCity(long seed, int grids, int density, boolean lanePolicy,
+                     String outputFileName,
+                     Double tripGenRate,
+                     int hovMin,
+                     ScenarioConfig config) {
         // Required by SimState
         super(seed);
+        this.config = config;
         this.seed = seed;
         isTest = true;
         this.grids = grids;
@@ -129,7 +342,7 @@ public class AgentCity extends SimState {
         this.filename = outputFileName;
         this.TRIPGEN_RATE = tripGenRate;
         this.HOV_MIN = hovMin;
-        if (FILE_OUT) {
+        if (config.fileOut) {
             try {
                 fw = new FileWriter(filename, true);
                 bw = new BufferedWriter(fw);
@@ -140,32 +353,29 @@ public class AgentCity extends SimState {
 
     @Override
     public String toString() {
-        if (agentGrid == null) { return ""; }
+        if (vehicles == null) { return ""; }
         int trips = printAverageTrips();
         int steps = printAverageSteps();
         int stepsPerTrip = (trips > 0 ? steps/trips : 0);
-        int stepsWithPassenger = 0;
-        int stepsWithoutPassenger = 0;
-        int stepsTravelingWithPassenger = 0;
-        int stepsTravelingWithoutPassenger = 0;
-        int distWithPassenger = 0;
-        int distWithoutPassenger = 0;
-        Bag vehicles = agentGrid.allObjects;
-        for (int i = 0; i < vehicles.numObjs; i++) {
-            stepsWithPassenger += ((Vehicle)vehicles.objs[i]).stepsWithPassenger;
-            stepsWithoutPassenger += ((Vehicle)vehicles.objs[i]).stepsWithoutPassenger;
-            stepsTravelingWithPassenger += ((Vehicle)vehicles.objs[i]).stepsTravelingWithPassenger;
-            stepsTravelingWithoutPassenger += ((Vehicle)vehicles.objs[i]).stepsTravelingWithoutPassenger;
-            distWithPassenger += ((Vehicle)vehicles.objs[i]).distWithPassenger;
-            distWithoutPassenger += ((Vehicle)vehicles.objs[i]).distWithoutPassenger;
-        }
+        int stepsWithPassenger = vehicleState
+            .getCounterTotal(VehicleState.STEPS_WITH_PASSENGER);
+        int stepsWithoutPassenger = vehicleState
+            .getCounterTotal(VehicleState.STEPS_WITHOUT_PASSENGER);
+        int stepsTravelingWithPassenger = vehicleState
+            .getCounterTotal(VehicleState.STEPS_TRAVELING_WITH_PASSENGER);
+        int stepsTravelingWithoutPassenger = vehicleState
+            .getCounterTotal(VehicleState.STEPS_TRAVELING_WITHOUT_PASSENGER);
+        int distWithPassenger = vehicleState
+            .getCounterTotal(VehicleState.DIST_WITH_PASSENGER);
+        int distWithoutPassenger = vehicleState
+            .getCounterTotal(VehicleState.DIST_WITHOUT_PASSENGER);
         StringBuilder s = new StringBuilder();
         s.append("{")
             .append("\"step\": " + step)
             .append(", ")
             .append("\"timeMins\": " + step * SECONDS_PER_STEP / 60)
             .append(", ")
-            .append("\"numTravelers\": " + (travelers==null ? "null" : travelers.numObjs))
+            .append("\"numTravelers\": " + (travelers==null ? "null" : getNumTravelers()))
             .append(", ");
 
         s.append("\"averageTrips\": " + trips)
@@ -191,8 +401,21 @@ public class AgentCity extends SimState {
             .append("\"distWithoutPassenger\": " + distWithoutPassenger)
             .append(", ")
             .append("\"lastTripStep\": " + lastTripStep)
-            .append(", ")
-            .append("\"lanePolicy\": " + LANE_POLICY)
+            .append(", ");
+        if (dispatcher != null && dispatcher.isBatching()) {
+            int batches = dispatcher.getNumBatches();
+            s.append("\"dispatchBatches\": " + batches)
+                .append(", ")
+                .append("\"averageSolveMicros\": "
+                        + (batches > 0 ? dispatcher.getSolveNanos() / 1000
+                           / batches : 0))
+                .append(", ")
+                .append("\"maxSolveMicros\": "
+                        + dispatcher.getMaxSolveNanos() / 1000)
+                .append(", ");
+            dispatcher.resetMetrics();
+        }
+        s.append("\"lanePolicy\": " + LANE_POLICY)
             .append(", ")
             .append("\"numVehicles\": " + numVehicles)
             .append(", ")
@@ -222,32 +445,112 @@ public class AgentCity extends SimState {
         return steps;
     }
 
+    /** Gets the number of trips completed since the start. */
+    public int getTripsCompleted() { return tripsCompleted; }
+
     public void reportTrip(Person person) {
         tripsCompleted++;
         lastTripStep = step;
         passengerSteps += person.getStepsTraveling();
     }
 
+    /** Gets the index of the provided grid location in flat per-cell
+     * arrays such as occupancy.
+     */
+    public int getCellId(int x, int y) {
+        return x * gridHeight + y;
+    }
+
+    /** Gets the ID number of the Vehicle at the provided grid location or -1
+     * if there is none or the location is not on the grid.
+     */
+    public int getVehicleIdAt(int x, int y) {
+        if (!checkBounds(x, y)) { return -1; }
+        return occupancy[x * gridHeight + y];
+    }
+
+    /** Gets the Vehicle at the provided grid location or null if there is
+     * none. This may be called from several threads while no Vehicle is
+     * moving.
+     */
+    public Vehicle getVehicleAt(int x, int y) {
+        int id = getVehicleIdAt(x, y);
+        if (id < 0) { return null; }
+        return vehicles[id];
+    }
+
+    /** Moves the Vehicle with the provided ID number in occupancy, and in
+     * agentGrid if needed, from one cell ID to another. A Vehicle being
+     * placed for the first time should pass a negative fromCell.
+     */
+    void moveVehicle(int id, int fromCell, int toCell) {
+        if (fromCell >= 0 && occupancy[fromCell] == id) {
+            occupancy[fromCell] = -1;
+        }
+        occupancy[toCell] = id;
+        if (roadTopology != null) {
+            // count Vehicles entering and leaving intersections, 0 is none
+            int left = 0;
+            if (fromCell >= 0) {
+                left = roadTopology.getIntersectionId(fromCell);
+                intersectionOccupants[left]--;
+            }
+            int entered = roadTopology.getIntersectionId(toCell);
+            intersectionOccupants[entered]++;
+            // the schedule must be validated where a Vehicle left, entered
+            // or moved
+            if (left != 0) {
+                intersectionAgents[left].markDirty();
+            }
+            if (entered != 0) {
+                intersectionAgents[entered].markDirty();
+                if (intersectionOccupants[entered] == 1) {
+                    // Vehicles move before the intersection phase
+                    intersectionAgents[entered].wake();
+                }
+            }
+            if (dispatcher != null) {
+                dispatcher.moveVehicle(id, toCell,
+                                       (entered != left) ? entered : 0);
+            }
+            // queue the Vehicle for boarding in the trip phase
+            if (arrivals != null && entered != 0 && entered != left
+                && intersectionAgents[entered].getNumWaiting() > 0) {
+                arrivals.add(vehicles[id]);
+            }
+        }
+        if (updateAgentGrid) {
+            agentGrid.setObjectLocation(vehicles[id], toCell / gridHeight,
+                                        toCell % gridHeight);
+        }
+    }
+
     public void start() {
         super.start();
         travelers = new Bag();
+        personPool = new Bag();
+        numWaiting = 0;
+        arrivals = config.eventBoarding ? new Bag() : null;
+        if (config.twoPhaseStepping && pool == null) {
+            pool = new ForkJoinPool(config.numThreads);
+        }
 
         if(isTest) {
             makeTestGrids();
         }
 
-        System.out.println(filename);
+        printReport(filename + "\n");
 
         Steppable report = new Steppable() {
                 public void step(final SimState state) {
                     AgentCity ac = (AgentCity)state;
                     step = schedule.getSteps();
-                    if (step % REPORT_INTERVAL == 0) {
+                    if (step % config.reportInterval == 0) {
                         String reportString = ac.toString();
-                        if (CONSOLE_OUT) {
-                            System.out.print(reportString);
+                        if (config.consoleOut) {
+                            printReport(reportString);
                         }
-                        if (FILE_OUT && step > 0) {
+                        if (config.fileOut && step > 0) {
                             fileout.println(reportString);
                             //fileout.close();
                         }
@@ -283,27 +586,113 @@ public class AgentCity extends SimState {
                                        COLLISION_SCHEDULE_NUM, 1);
         }
 
+        if (isBatched()) {
+            scheduleBatchedPhases();
+        } else if (config.eventBoarding) {
+            schedule.scheduleRepeating(new Steppable() {
+                    public void step(final SimState state) {
+                        boardArrivals();
+                    }
+                }, TRIPGEN_SCHEDULE_NUM, 1);
+        }
+
         schedule.scheduleRepeating(report, REPORT_SCHEDULE_NUM, 1);
     }
 
-    // check the neighbors of each intersection cell for previous labels
-    // apply a new integer label if not
-    private int labelIntersection(int cellX, int cellY, int num) {
-        int label = 0;
-        for (int x = -1; x < 2; x++) {
-            for (int y = -1; y < 2; y++) {
-                if (!checkBounds(cellX + x, cellY + y)) {
-                    continue;
+    /** Registers one Steppable for each phase of a step. Each one loops
+     * over its agents in a fixed order, except that DriverAgents and
+     * travelers are visited in an order shuffled every step since they
+     * compete for reservations and seats.
+     */
+    private void scheduleBatchedPhases() {
+        Steppable intersectionPhase = new Steppable() {
+                public void step(final SimState state) {
+                    for (int i = 1; i < intersectionAgents.length; i++) {
+                        if (!intersectionAgents[i].isDormant()) {
+                            intersectionAgents[i].step(state);
+                        }
+                    }
                 }
-                label = intersectionGrid.field[cellX + x][cellY + y];
-                if (label != 0) {
-                    intersectionGrid.field[cellX][cellY] = label;
-                    return 0;
+            };
+
+        Steppable driverPhase = new Steppable() {
+                final int[] order = new int[drivers.length];
+                {
+                    for (int i = 0; i < order.length; i++) {
+                        order[i] = i;
+                    }
                 }
-            }
+                public void step(final SimState state) {
+                    safeSpeedField.update();
+                    shuffle(order);
+                    for (int i = 0; i < order.length; i++) {
+                        drivers[order[i]].step(state);
+                    }
+                }
+            };
+
+        Steppable tripPhase = new Steppable() {
+                Object[] snapshot = new Object[0];
+                int[] order = new int[0];
+                public void step(final SimState state) {
+                    // travelers may remove themselves so step a snapshot
+                    int n = travelers.numObjs;
+                    if (snapshot.length < n) {
+                        snapshot = new Object[2 * n];
+                    }
+                    System.arraycopy(travelers.objs, 0, snapshot, 0, n);
+                    if (order.length < n) {
+                        order = new int[2 * n];
+                    }
+                    for (int i = 0; i < n; i++) {
+                        order[i] = i;
+                    }
+                    shuffle(order, n);
+                    Person person;
+                    for (int i = 0; i < n; i++) {
+                        person = (Person)snapshot[order[i]];
+                        snapshot[order[i]] = null;
+                        if (person.travelerIndex >= 0) {
+                            person.step(state);
+                        }
+                    }
+                    if (arrivals != null) {
+                        boardArrivals();
+                    }
+                    if (dispatcher != null) {
+                        dispatcher.step(state);
+                    }
+                    for (int i = 1; i < tripGenerators.length; i++) {
+                        tripGenerators[i].step(state);
+                    }
+                    if (demandEngine != null) {
+                        demandEngine.step(state);
+                    }
+                    if (tripReplay != null) {
+                        tripReplay.step(state);
+                    }
+                }
+            };
+
+        schedule.scheduleRepeating(vehicleState, VEHICLE_SCHEDULE_NUM, 1);
+        schedule.scheduleRepeating(intersectionPhase,
+                                   INTERSECTION_SCHEDULE_NUM, 1);
+        if (config.twoPhaseStepping) {
+            schedule.scheduleRepeating(new TwoPhaseStepper(drivers, pool),
+                                       DRIVER_SCHEDULE_NUM, 1);
+        } else {
+            schedule.scheduleRepeating(driverPhase, DRIVER_SCHEDULE_NUM, 1);
+        }
+        schedule.scheduleRepeating(tripPhase, TRIPGEN_SCHEDULE_NUM, 1);
+    }
+
+    public void finish() {
+        super.finish();
+        closeTripReplay();
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
         }
-        intersectionGrid.field[cellX][cellY] = num + 1;
-        return 1;
     }
 
     public boolean checkBounds(int x, int y) {
@@ -321,134 +710,218 @@ public class AgentCity extends SimState {
         int n = grids;
         int vehicleDensity = density;
 
-        final int NUM_VEHICLES = n * n * vehicleDensity;
-        numVehicles = NUM_VEHICLES;
-        gridHeight = n * 38 + 2;
-        gridWidth = gridHeight;
+        // share the static network with any other run on the same grid
+        network = (map != null) ? map : RoadNetwork.getTestGrid(n);
 
-        int numIntersections = 0;
-
-        roadGrid = new IntGrid2D(gridWidth, gridHeight, Direction.NONE.toInt());
-        intersectionGrid = new IntGrid2D(gridWidth, gridHeight, 0);
-        blockGrid = new IntGrid2D(gridWidth, gridHeight, 1);
+        // density is per block of the test grid, so a map gets as many
+        // vehicles per road cell as a test grid block
+        final int NUM_VEHICLES = (map != null)
+            ? (int)((long)network.getNumSpawnCells() * vehicleDensity
+                    / RoadNetwork.SPAWN_CELLS_PER_BLOCK)
+            : n * n * vehicleDensity;
+        numVehicles = NUM_VEHICLES;
+        gridWidth = network.gridWidth;
+        gridHeight = network.gridHeight;
+        roadGrid = network.roadGrid;
+        walkwayGrid = network.walkwayGrid;
+        parkingGrid = network.parkingGrid;
+        intersectionGrid = network.intersectionGrid;
+        blockGrid = network.blockGrid;
+        intersections = network.intersections;
+        roadTopology = network.roadTopology;
+        int numIntersections = network.numIntersections;
 
         agentGrid = new SparseGrid2D(gridWidth, gridHeight);
+        occupancy = new int[gridWidth * gridHeight];
+        Arrays.fill(occupancy, -1);
 
-        // Make some roads and blocks
-        for (int x = 0; x < gridWidth; x++) {
-            for (int y = 0; y < gridHeight; y++) {
-                if (x == 0 || (x-2)%38 == 16 || (x-2)%38 == 17 || (x-2)%38 == 36) {
-                    if (roadGrid.field[x][y] != 0) {
-                        numIntersections +=
-                            labelIntersection(x, y, numIntersections);
-                        roadGrid.field[x][y] = Direction.ALL.toInt();
-                    }
-                    else roadGrid.field[x][y] = Direction.SOUTH.toInt();
-                    blockGrid.field[x][y] = 0;
-                }
-                if (x == 1 || (x-2)%38 == 18 || (x-2)%38 == 19 || (x-2)%38 == 37) {
-                    if (roadGrid.field[x][y] != 0) {
-                        numIntersections +=
-                            labelIntersection(x, y, numIntersections);
-                        roadGrid.field[x][y] = Direction.ALL.toInt();
-                    }
-                    else roadGrid.field[x][y] = Direction.NORTH.toInt();
-                    blockGrid.field[x][y] = 0;
-                }
-                if (y == 0 || (y-2)%38 == 16 || (y-2)%38 == 17 || (y-2)%38 == 36) {
-                    if (roadGrid.field[x][y] != 0) {
-                        numIntersections +=
-                            labelIntersection(x, y, numIntersections);
-                        roadGrid.field[x][y] = Direction.ALL.toInt();
-                    }
-                    else roadGrid.field[x][y] = Direction.WEST.toInt();
-                    blockGrid.field[x][y] = 0;
-                }
-                if (y == 1 || (y-2)%38 == 18 || (y-2)%38 == 19 || (y-2)%38 == 37) {
-                    if (roadGrid.field[x][y] != 0) {
-                        numIntersections +=
-                            labelIntersection(x, y, numIntersections);
-                        roadGrid.field[x][y] = Direction.ALL.toInt();
-                    }
-                    else roadGrid.field[x][y] = Direction.EAST.toInt();
-                    blockGrid.field[x][y] = 0;
-                }
-            }
-        }
-
-        // make some intersections
-        int maxXs[] = new int[numIntersections + 1];
-        int minXs[] = new int[numIntersections + 1];
-        int maxYs[] = new int[numIntersections + 1];
-        int minYs[] = new int[numIntersections + 1];
-        Arrays.fill(minXs, gridWidth);
-        Arrays.fill(minYs, gridHeight);
-        intersections = new Intersection[numIntersections + 1];
+        // make an agent and, unless demand is city-wide, a trip generator
+        // for each intersection
+        boolean engine = config.demandEngine || odMatrix != null;
+        boolean cityDemand = engine || tripFile != null;
         intersectionAgents = new IntersectionAgent[numIntersections + 1];
-        int inter;
-        for (int x = 0; x < gridWidth; x++) {
-            for (int y = 0; y < gridHeight; y++) {
-                inter = intersectionGrid.field[x][y];
-                if (inter != 0) {
-                    maxXs[inter] = (x > maxXs[inter]) ? x : maxXs[inter];
-                    minXs[inter] = (x < minXs[inter]) ? x : minXs[inter];
-                    maxYs[inter] = (y > maxYs[inter]) ? y : maxYs[inter];
-                    minYs[inter] = (y < minYs[inter]) ? y : minYs[inter];
-                }
-            }
-        }
+        tripGenerators =
+            new TripGenerator[cityDemand ? 1 : numIntersections + 1];
         for (int i = 1; i < numIntersections + 1; i++) {
-            intersections[i] =
-                new Intersection(i, minXs[i], maxXs[i], minYs[i], maxYs[i],
-                                 this);
-            intersectionAgents[i] = new IntersectionAgent(i, intersections[i]);
-            intersectionAgents[i].stopper =
-                schedule.scheduleRepeating(intersectionAgents[i],
-                                           INTERSECTION_SCHEDULE_NUM, 1);
+            intersectionAgents[i] =
+                new IntersectionAgent(i, intersections[i],
+                                      config.reservationPriority);
+            if (!isBatched()) {
+                intersectionAgents[i].stopper =
+                    schedule.scheduleRepeating(intersectionAgents[i],
+                                               INTERSECTION_SCHEDULE_NUM, 1);
+            }
+            if (cityDemand) continue;
             TripGenerator gen =
                 new TripGenerator(i, intersections[i], TRIPGEN_RATE,
                                   new MersenneTwisterFast(seed));
-            gen.stopper =
-                schedule.scheduleRepeating(gen, TRIPGEN_SCHEDULE_NUM, 1);
+            tripGenerators[i] = gen;
+            if (!isBatched()) {
+                gen.stopper =
+                    schedule.scheduleRepeating(gen, TRIPGEN_SCHEDULE_NUM, 1);
+            }
         }
+        demandEngine = null;
+        if (engine) {
+            demandEngine = (odMatrix != null)
+                ? new DemandEngine(numIntersections, odMatrix, rateProfile,
+                                   profilePeriod, seed)
+                : new DemandEngine(numIntersections, TRIPGEN_RATE, seed);
+            if (!isBatched()) {
+                demandEngine.stopper =
+                    schedule.scheduleRepeating(demandEngine,
+                                               TRIPGEN_SCHEDULE_NUM, 1);
+            }
+        }
+        closeTripReplay();
+        if (tripFile != null) {
+            try {
+                tripReplay = new TripReplay(Paths.get(tripFile),
+                                            numIntersections);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (!isBatched()) {
+                tripReplay.stopper =
+                    schedule.scheduleRepeating(tripReplay,
+                                               TRIPGEN_SCHEDULE_NUM, 1);
+            }
+        }
+        intersectionOccupants = new int[numIntersections + 1];
 
         // make some vehicles
+        dispatcher = null;
+        vehicles = new Vehicle[NUM_VEHICLES];
+        drivers = new DriverAgent[NUM_VEHICLES];
+        vehicleState = new VehicleState(NUM_VEHICLES);
+        vehicleState.attach(this, pool);
+        int[] spawnCells = null;
+        if (config.shuffledPlacement) {
+            spawnCells = network.copySpawnCells();
+            if (NUM_VEHICLES > spawnCells.length) {
+                throw new IllegalArgumentException(String.format(
+                    "%d vehicles do not fit on %d road cells",
+                    NUM_VEHICLES, spawnCells.length));
+            }
+        }
+        Int2D newLocation;
         for (int i = 0; i < NUM_VEHICLES; i++) {
-            // Get random location on road
-            Int2D newLocation = new Int2D(random.nextInt(gridWidth),
-                                          random.nextInt(gridHeight));
-            while (roadGrid.get(newLocation.x, newLocation.y) == 0
-                   || roadGrid.get(newLocation.x, newLocation.y) == 9
-                   || agentGrid.getObjectsAtLocation(newLocation.x,
-                                                     newLocation.y) != null) {
+            if (spawnCells != null) {
+                // draw the next cell from those not yet taken
+                int j = i + random.nextInt(spawnCells.length - i);
+                int cell = spawnCells[j];
+                spawnCells[j] = spawnCells[i];
+                spawnCells[i] = cell;
+                newLocation =
+                    roadTopology.getLocation(roadTopology.getRoadId(cell));
+            } else {
+                // Get random location on road
                 newLocation = new Int2D(random.nextInt(gridWidth),
                                         random.nextInt(gridHeight));
+                while (roadGrid.get(newLocation.x, newLocation.y) == 0
+                       || roadGrid.get(newLocation.x, newLocation.y) == 9
+                       || getVehicleIdAt(newLocation.x, newLocation.y) >= 0) {
+                    newLocation = new Int2D(random.nextInt(gridWidth),
+                                            random.nextInt(gridHeight));
+                }
             }
             // One Vehicle on a road cell in the correct direction
             Direction newDir = Direction.byInt(roadGrid.get(newLocation.x,
                                                             newLocation.y));
-            Vehicle newVehicle = new Vehicle(i, newDir);
-            agentGrid.setObjectLocation(newVehicle, newLocation);
-            // Add Vehicle to Schedule
-            newVehicle.stopper =
-                schedule.scheduleRepeating(newVehicle, VEHICLE_SCHEDULE_NUM, 1);
+            Vehicle newVehicle = new Vehicle(i, newDir, vehicleState,
+                                           config.maxSpeed);
+            vehicles[i] = newVehicle;
+            newVehicle.setHovMin(HOV_MIN);
+            newVehicle.setLocation(this, newLocation);
             // DriverAgent for Vehicle
             DriverAgent newDriver = new DriverAgent(i);
             newVehicle.setDriver(newDriver);
             newDriver.setVehicle(newVehicle);
-            // add Driver to Schedule
-            newDriver.stopper =
-                schedule.scheduleRepeating(newDriver, DRIVER_SCHEDULE_NUM, 1);
+            drivers[i] = newDriver;
+            if (!isBatched()) {
+                // Add Vehicle and Driver to Schedule
+                newVehicle.stopper =
+                    schedule.scheduleRepeating(newVehicle,
+                                               VEHICLE_SCHEDULE_NUM, 1);
+                newDriver.stopper =
+                    schedule.scheduleRepeating(newDriver,
+                                               DRIVER_SCHEDULE_NUM, 1);
+            }
             // add passenger if appropriate
-            if (PASSENGER_WARM_START && random.nextFloat() < WARM_START_RATE) {
+            if (config.passengerWarmStart
+                && random.nextFloat() < config.warmStartRate) {
                 Intersection destination =
                     intersections[random.nextInt(intersections.length - 1) + 1];
                 Person newPerson = new Person(i, null, destination, newVehicle);
+                // add passenger to travelers and schedule
                 addTraveler(newPerson);
-                // add passenger to schedule
-                newPerson.stopper = schedule.scheduleRepeating(newPerson, TRIPGEN_SCHEDULE_NUM, 1);
             }
         }
+        if (config.dispatch) {
+            dispatcher = new DispatchAgent(0, this, NUM_VEHICLES,
+                                           DispatchAgent.DEFAULT_BUCKET_SIZE,
+                                           config.dispatchBatchSteps,
+                                           DispatchAgent.DEFAULT_CANDIDATES);
+            for (int i = 0; i < NUM_VEHICLES; i++) {
+                dispatcher.addVehicleToPool(vehicles[i]);
+            }
+            if (!isBatched()) {
+                dispatcher.stopper =
+                    schedule.scheduleRepeating(dispatcher,
+                                               TRIPGEN_SCHEDULE_NUM, 1);
+            }
+        }
+        safeSpeedField = new SafeSpeedField(this);
+    }
+
+    private void closeTripReplay() {
+        if (tripReplay == null) return;
+        try {
+            tripReplay.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        tripReplay = null;
+    }
+
+    /** Sends console reports to the provided writer instead of System.out
+     * so concurrent runs do not interleave their output.
+     */
+    public void setReportOut(PrintWriter reportOut) {
+        this.reportOut = reportOut;
+    }
+
+    private void printReport(String report) {
+        if (reportOut != null) {
+            reportOut.print(report);
+            reportOut.flush();
+        } else {
+            System.out.print(report);
+        }
+    }
+
+    /** Steps the schedule the provided number of times. */
+    public void run(long steps) {
+        for (long j = 0; j < steps; j++) {
+            schedule.step(this);
+        }
+    }
+
+    /** Runs one simulation for the provided number of steps, closes its
+     * output file and kills it.
+     */
+    public static void runOnce(long seed, int grids, int density,
+                               boolean lanePolicy, String filename,
+                               Double tripGenRate, int hovMin,
+                               long steps) {
+        AgentCity state = new AgentCity(seed, grids, density, lanePolicy,
+                                        filename, tripGenRate, hovMin);
+        state.start();
+        state.run(steps);
+        if (state.fileout != null) {
+            state.fileout.close();
+        }
+        state.kill();
     }
 
     /** Main */
@@ -459,7 +932,6 @@ public class AgentCity extends SimState {
         int numRuns = 64;
         int numMins = 60;
         int stepLimit = numMins * 60 + 1;
-        SimState state;
         int grids = 4;
         int density;
         int minDensity = 128;
@@ -488,30 +960,12 @@ public class AgentCity extends SimState {
             //tripGenRate = random.nextDouble() * (maxRate - minRate) + minRate;
             //hovMin = random.nextInt(4 - 1) + 1;
             tripGenRate = 0.2;
-            state = new AgentCity(seed, grids, density, true, filename,
-                                  tripGenRate, 1);
-            state.start();
-            for (int j = 0; j < stepLimit; j++) {
-                state.schedule.step(state);
-            }
-            ((AgentCity)state).fileout.close();
-            state.kill();
-            state = new AgentCity(seed, grids, density, true, filename,
-                                  tripGenRate, 2);
-            state.start();
-            for (int j = 0; j < stepLimit; j++) {
-                state.schedule.step(state);
-            }
-            ((AgentCity)state).fileout.close();
-            state.kill();
-            state = new AgentCity(seed, grids, density, false, filename,
-                                  tripGenRate, 1);
-            state.start();
-            for (int j = 0; j < stepLimit; j++) {
-                state.schedule.step(state);
-            }
-            ((AgentCity)state).fileout.close();
-            state.kill();
+            runOnce(seed, grids, density, true, filename, tripGenRate, 1,
+                    stepLimit);
+            runOnce(seed, grids, density, true, filename, tripGenRate, 2,
+                    stepLimit);
+            runOnce(seed, grids, density, false, filename, tripGenRate, 1,
+                    stepLimit);
             seed++;
         }
         System.exit(0);
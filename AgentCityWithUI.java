@@ -106,11 +106,14 @@ public class AgentCityWithUI extends GUIState {
     }
 
     public void start() {
+        // The display draws Vehicles from agentGrid
+        ((AgentCity)state).updateAgentGrid = true;
         super.start();
         setupPortrayals();
     }
 
     public void load(SimState state) {
+        ((AgentCity)state).updateAgentGrid = true;
         super.load(state);
         setupPortrayals();
     }
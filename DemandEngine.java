@@ -0,0 +1,299 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import sim.engine.*;
+import ec.util.MersenneTwisterFast;
+import java.util.Arrays;
+
+/**
+ * Generates the Person objects of a whole city from one time-ordered buffer
+ * of arrivals.
+ *
+ * <p> Each origin Intersection has its own random number generator, seeded
+ * from the run seed and its ID number, and holds the time of its next
+ * arrival. The gaps between arrivals are exponential, so arrivals at each
+ * origin are a Poisson process with the rate of that origin. A step pops
+ * the arrivals due before the next step from a heap ordered by time and
+ * draws the next arrival of each origin popped. A step without arrivals
+ * costs one comparison.
+ *
+ * <p> By default every origin has the same rate and destinations are
+ * uniform over the other Intersections. An origin-destination matrix gives
+ * the rate of trips between each pair instead. A rate profile scales every
+ * rate by a multiplier for each period of the day, applied by thinning.
+ */
+public class DemandEngine implements Steppable {
+
+    // MASON
+    private static final long serialVersionUID = 1;
+    Stoppable stopper;
+    long step;
+
+    // Properties
+    public final int numIntersections;
+
+    // Variables
+    private final MersenneTwisterFast[] rands;
+    // Trips per step from each origin at a multiplier of one
+    private final double[] rates;
+    // Cumulative destination weights of each origin, null if uniform
+    private final double[][] destinations;
+    // Multiplier of every rate for each period, cycling
+    private final double[] profile;
+    private final long periodSteps;
+    private final double maxMultiplier;
+    // Time of the next arrival at each origin
+    private final double[] nextArrivals;
+    // Binary heap of origins ordered by next arrival
+    private final int[] heap;
+    private int heapSize = 0;
+
+    /** Constructor
+     *
+     * @param numIntersections number of Intersections, numbered from one.
+     * @param rate trips per step from every origin.
+     * @param seed seed of the run, mixed with each origin ID number.
+     */
+    public DemandEngine(int numIntersections, double rate, long seed) {
+        this(numIntersections, uniformRates(numIntersections, rate), null,
+             null, 1, seed);
+    }
+
+    /** Constructor
+     *
+     * @param numIntersections number of Intersections, numbered from one.
+     * @param odMatrix trips per step from each origin to each destination,
+     * indexed by Intersection ID number. Row and column 0 are unused.
+     * @param profile multiplier of every rate for each period, repeating
+     * once all periods have passed. May be null for a constant rate.
+     * @param periodSteps steps in each period of the profile.
+     * @param seed seed of the run, mixed with each origin ID number.
+     */
+    public DemandEngine(int numIntersections, double[][] odMatrix,
+                        double[] profile, long periodSteps, long seed) {
+        this(numIntersections, rowSums(numIntersections, odMatrix),
+             cumulativeRows(numIntersections, odMatrix), profile,
+             periodSteps, seed);
+    }
+
+    private DemandEngine(int numIntersections, double[] rates,
+                         double[][] destinations, double[] profile,
+                         long periodSteps, long seed) {
+        if (numIntersections < 2) {
+            throw new IllegalArgumentException(
+                "Demand needs at least two Intersections");
+        }
+        if (periodSteps < 1) {
+            throw new IllegalArgumentException("periodSteps must be positive");
+        }
+        this.numIntersections = numIntersections;
+        this.rates = rates;
+        this.destinations = destinations;
+        this.profile = (profile == null) ? new double[] {1} : profile.clone();
+        this.periodSteps = periodSteps;
+        double max = 0;
+        for (double m : this.profile) {
+            if (m < 0) {
+                throw new IllegalArgumentException(
+                    "Rate profile multipliers must not be negative");
+            }
+            max = Math.max(max, m);
+        }
+        maxMultiplier = max;
+        rands = new MersenneTwisterFast[numIntersections + 1];
+        nextArrivals = new double[numIntersections + 1];
+        heap = new int[numIntersections];
+        for (int i = 1; i <= numIntersections; i++) {
+            rands[i] = new MersenneTwisterFast(mix(seed, i));
+            nextArrivals[i] = drawArrival(i, 0);
+            if (nextArrivals[i] < Double.POSITIVE_INFINITY) {
+                push(i);
+            }
+        }
+    }
+
+    // Utility
+
+    private static double[] uniformRates(int numIntersections, double rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("Rate must not be negative");
+        }
+        double[] rates = new double[numIntersections + 1];
+        Arrays.fill(rates, 1, numIntersections + 1, rate);
+        return rates;
+    }
+
+    private static double[] rowSums(int numIntersections, double[][] od) {
+        checkMatrix(numIntersections, od);
+        double[] rates = new double[numIntersections + 1];
+        for (int o = 1; o <= numIntersections; o++) {
+            for (int d = 1; d <= numIntersections; d++) {
+                if (o != d) rates[o] += od[o][d];
+            }
+        }
+        return rates;
+    }
+
+    private static double[][] cumulativeRows(int numIntersections,
+                                             double[][] od) {
+        double[][] rows = new double[numIntersections + 1][];
+        for (int o = 1; o <= numIntersections; o++) {
+            rows[o] = new double[numIntersections + 1];
+            double sum = 0;
+            for (int d = 1; d <= numIntersections; d++) {
+                if (o != d) sum += od[o][d];
+                rows[o][d] = sum;
+            }
+        }
+        return rows;
+    }
+
+    private static void checkMatrix(int numIntersections, double[][] od) {
+        if (od.length != numIntersections + 1) {
+            throw new IllegalArgumentException(String.format(
+                "OD matrix has %d rows, expected %d",
+                od.length, numIntersections + 1));
+        }
+        for (int o = 1; o <= numIntersections; o++) {
+            if (od[o].length != numIntersections + 1) {
+                throw new IllegalArgumentException(String.format(
+                    "OD matrix row %d has %d columns, expected %d",
+                    o, od[o].length, numIntersections + 1));
+            }
+            for (int d = 1; d <= numIntersections; d++) {
+                if (od[o][d] < 0) {
+                    throw new IllegalArgumentException(String.format(
+                        "OD matrix rate [%d][%d] is negative", o, d));
+                }
+            }
+        }
+    }
+
+    /** Mixes the run seed with an origin ID number so that each origin
+     * starts its own well separated stream.
+     */
+    static long mix(long seed, int id) {
+        long z = seed + id * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /** Gets the multiplier of the rate profile at the provided time. */
+    private double getMultiplier(double time) {
+        long period = (long)(time / periodSteps);
+        return profile[(int)(period % profile.length)];
+    }
+
+    /** Draws the time of the first arrival at an origin after the provided
+     * time, or infinity if it has none.
+     */
+    private double drawArrival(int origin, double time) {
+        double rate = rates[origin] * maxMultiplier;
+        if (rate <= 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        MersenneTwisterFast rand = rands[origin];
+        while (true) {
+            time -= Math.log(1 - rand.nextDouble()) / rate;
+            if (profile.length == 1) {
+                return time;
+            }
+            // keep the candidate in proportion to the rate at its time
+            if (rand.nextDouble() * maxMultiplier < getMultiplier(time)) {
+                return time;
+            }
+        }
+    }
+
+    /** Draws a destination for a trip from the provided origin. */
+    private int drawDestination(int origin) {
+        MersenneTwisterFast rand = rands[origin];
+        if (destinations == null) {
+            // uniform over the others without rejection
+            int d = rand.nextInt(numIntersections - 1) + 1;
+            return (d >= origin) ? d + 1 : d;
+        }
+        double[] row = destinations[origin];
+        double u = rand.nextDouble() * row[numIntersections];
+        int lo = 1;
+        int hi = numIntersections;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (row[mid] > u) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    // Heap of origins by next arrival
+
+    private void push(int origin) {
+        int i = heapSize++;
+        heap[i] = origin;
+        siftUp(i);
+    }
+
+    private void siftUp(int i) {
+        int origin = heap[i];
+        double time = nextArrivals[origin];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (nextArrivals[heap[parent]] <= time) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = origin;
+    }
+
+    private void siftDown(int i) {
+        int origin = heap[i];
+        double time = nextArrivals[origin];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize
+                && nextArrivals[heap[child + 1]] < nextArrivals[heap[child]]) {
+                child++;
+            }
+            if (nextArrivals[heap[child]] >= time) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = origin;
+    }
+
+    /** Gets the time of the next arrival in the city, or infinity. */
+    public double getNextArrival() {
+        return (heapSize == 0) ? Double.POSITIVE_INFINITY
+            : nextArrivals[heap[0]];
+    }
+
+    /** Adds a Person for each arrival due before the next step, in order of
+     * arrival time.
+     */
+    public void step(final SimState state) {
+        AgentCity ac = (AgentCity)state;
+        step = ac.schedule.getSteps();
+        double end = step + 1;
+        while (heapSize > 0 && nextArrivals[heap[0]] < end) {
+            int origin = heap[0];
+            int destination = drawDestination(origin);
+            int newId = (int)step * 10000 + 100 * origin + destination;
+            ac.addPerson(ac.newPerson(newId, ac.intersections[origin],
+                                      ac.intersections[destination]));
+            nextArrivals[origin] = drawArrival(origin, nextArrivals[origin]);
+            if (nextArrivals[origin] < Double.POSITIVE_INFINITY) {
+                siftDown(0);
+            } else {
+                heap[0] = heap[--heapSize];
+                if (heapSize > 0) siftDown(0);
+            }
+        }
+    }
+}
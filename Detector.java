@@ -71,9 +71,8 @@ public class Detector implements Steppable {
         ac = (AgentCity)state;
 
         for (int i = 0; i < cells.length; i++) {
-            b = ac.agentGrid.getObjectsAtLocation(cells[i]);
-            if (b == null) { continue; }
-            vehicle = (Vehicle)b.objs[0];
+            vehicle = ac.getVehicleAt(cells[i].x, cells[i].y);
+            if (vehicle == null) { continue; }
             buffer.add(vehicle);
             if (vehicles.contains(vehicle)) continue;
             vehicles.add(vehicle);
@@ -3,9 +3,6 @@
  */
 
 package sim.app.agentcity;
-import static java.util.Arrays.stream;
-import static java.util.stream.Collectors.toMap;
-import java.util.Map;
 
 enum Direction {
 
@@ -24,8 +21,13 @@ enum Direction {
     private final int xOffset;
     private final int yOffset;
 
-    private final static Map<Integer, Direction> map =
-        stream(Direction.values()).collect(toMap(dir -> dir.dirNum, dir -> dir));
+    // Directions indexed by dirNum
+    private final static Direction[] byNum = new Direction[10];
+    static {
+        for (Direction dir : Direction.values()) {
+            byNum[dir.dirNum] = dir;
+        }
+    }
 
     private Direction(final int dir, final int x, final int y) {
         this.dirNum = dir;
@@ -38,7 +40,8 @@ enum Direction {
     public int getYOffset() { return yOffset; }
 
     public static Direction byInt(int dirNum) {
-        return map.get(dirNum);
+        if (dirNum < 0 || dirNum >= byNum.length) return null;
+        return byNum[dirNum];
     }
 
     public Direction byDirective(Driver.Directive directive) {
@@ -8,8 +8,30 @@ import sim.engine.*;
 import java.util.Arrays;
 
 /**
- * Generic agent for dispatching {@link Vehicle} objects to {@link Person}
+ * Central agent for dispatching {@link Vehicle} objects to {@link Person}
  * objects.
+ *
+ * <p> Available Vehicles, those without passengers or an assignment, are
+ * kept in a spatial index of square buckets of grid cells. Each bucket is
+ * a doubly linked list threaded through arrays indexed by Vehicle ID
+ * number, so adding, removing and moving a Vehicle between buckets takes
+ * constant time and allocates nothing. The index follows Vehicles as they
+ * move and is pruned lazily: a Vehicle that took passengers on its own is
+ * dropped when a lookup comes across it.
+ *
+ * <p> A request is answered by searching rings of buckets outward from the
+ * pickup until no closer Vehicle can remain. The chosen Vehicle's
+ * DriverAgent is steered toward the pickup, and the Person boards when the
+ * Vehicle enters the pickup Intersection.
+ *
+ * <p> In batch mode requests are instead collected over a window of steps
+ * and matched all at once. Each Person is linked to a few of the nearest
+ * available Vehicles to its origin, Persons with the same origin to
+ * overlapping windows of one list so they need not compete for the same
+ * few, and an auction over this sparse graph finds the matching of least
+ * total Manhattan distance, to within a fraction of a cell per Person and
+ * Vehicle. A Person left unmatched, as when its candidates are all taken
+ * by others, waits for a passing Vehicle as without dispatch.
  */
 
 public class DispatchAgent implements Steppable, Dispatcher {
@@ -19,41 +41,188 @@ public class DispatchAgent implements Steppable, Dispatcher {
     Stoppable stopper;
     long step;
 
+    // Utility
+    /** Default width in cells of a bucket of the spatial index. */
+    public static final int DEFAULT_BUCKET_SIZE = 16;
+    /** Default number of nearest Vehicles each Person of a batch may be
+     * matched to.
+     */
+    public static final int DEFAULT_CANDIDATES = 8;
+    // Auction prices are in units of one cell over PRICE_SCALE, and the
+    // total distance matched is within one such unit per row of the least
+    private static final int PRICE_SCALE = 4;
+    // Factor by which the bid increment falls between rounds of the auction
+    private static final int EPSILON_FACTOR = 4;
+
     // Properties
     public final int idNum;
+    public final int gridWidth;
+    public final int gridHeight;
+    public final int bucketSize;
+    public final int bucketsWide;
+    public final int bucketsHigh;
+    public final int batchSteps;
+    public final int numCandidates;
 
     // Variables
-    private Bag vehiclePool;
-    private Bag clients;
-    private Bag idleVehicles;
+    private AgentCity ac;
+    private Vehicle[] vehiclePool;
+    // First Vehicle ID number of each bucket, or -1
+    private int[] heads;
+    // Neighbors in the list of each Vehicle's bucket, or -1
+    private int[] next;
+    private int[] prev;
+    // Bucket of each Vehicle, or -1 if not in the index
+    private int[] buckets;
+    // Cell ID number of each Vehicle
+    private int[] cells;
+    private int numIndexed = 0;
+    // Person and pickup Intersection assigned to each Vehicle, or null
+    private Person[] clients;
+    private Intersection[] pickUps;
+    private int numAssigned = 0;
+    // Vehicles that entered their pickup Intersection this step
+    private Bag arrivals = new Bag();
+    // Nearest Vehicles and their distances found by findNearest
+    private int[] nearIds;
+    private int[] nearDists;
+    // Persons waiting for the next batch
+    private Bag requests = new Bag();
+    // Step at which the current batch window closes
+    private long batchEnd = 0;
+    // Candidate graph of a batch: request i may be matched to the Vehicles
+    // candIds[candStarts[i]] to candIds[candEnds[i] - 1]
+    private int[] candStarts = new int[0];
+    private int[] candEnds = new int[0];
+    private int[] candIds = new int[0];
+    private int[] candDists = new int[0];
+    // Requests of a batch from each origin, those linked so far, and the
+    // nearest Vehicles of the origin in candIds, by Intersection ID number
+    private int[] originCounts;
+    private int[] originRanks;
+    private int[] originStarts;
+    private int[] originEnds;
+    // Auction of a batch, made square: a row for each request and for each
+    // candidate Vehicle staying idle, a column for each candidate Vehicle
+    // and for each request left unmatched. The edges of row r are
+    // edgeCols[rowStarts[r]] to edgeCols[rowStarts[r + 1] - 1]
+    private int[] columns;
+    private int[] columnIds = new int[0];
+    private int[] rowStarts = new int[1];
+    private int[] edgeCols = new int[0];
+    private int[] edgeValues = new int[0];
+    // Price and owning row of each column, or -1, and column of each row
+    private int[] prices = new int[0];
+    private int[] owners = new int[0];
+    private int[] assigned = new int[0];
+    private int[] unassigned = new int[0];
+    // Vehicle matched to each request, or -1
+    private int[] matches = new int[0];
+    // Batches matched and time spent matching since the metrics were reset
+    private int numBatches = 0;
+    private long solveNanos = 0;
+    private long maxSolveNanos = 0;
 
     // Accessors
+    /** Gets the number of Vehicles in the index of available Vehicles,
+     * including any not yet found to have taken passengers.
+     */
+    public int getNumIndexed() { return numIndexed; }
+
+    /** Gets the number of Persons waiting for an assigned Vehicle. */
+    public int getNumAssigned() { return numAssigned; }
+
+    /** Gets the number of Persons waiting for the next batch. */
+    public int getNumRequests() { return requests.numObjs; }
+
+    /** True if requests are collected and matched in batches. */
+    public boolean isBatching() { return batchSteps > 0; }
+
+    /** Gets the number of batches matched since the metrics were reset. */
+    public int getNumBatches() { return numBatches; }
+
+    /** Gets the total time in nanoseconds spent matching batches since the
+     * metrics were reset.
+     */
+    public long getSolveNanos() { return solveNanos; }
+
+    /** Gets the longest time in nanoseconds spent matching one batch since
+     * the metrics were reset.
+     */
+    public long getMaxSolveNanos() { return maxSolveNanos; }
+
+    /** Resets the batch metrics, as after each report. */
+    public void resetMetrics() {
+        numBatches = 0;
+        solveNanos = 0;
+        maxSolveNanos = 0;
+    }
+
+    /** Holds the provided Person for the next batch. */
+    public void addRequest(Person person) {
+        requests.add(person);
+    }
+
+    /** Finds the nearest available Vehicle to the provided pickup and
+     * assigns it to the provided Person.
+     *
+     * @return the ID number of the assigned Vehicle or -1 if none is
+     * available.
+     */
     public int requestVehicle(Intersection location,
                               Intersection destination,
                               Person person,
                               long step) {
-        if (idleVehicles.numObjs > 0) {
-            assignVehicle((Vehicle)idleVehicles.pop(),
-                          person,
-                          location,
-                          destination);
+        int id = findNearest(location.minX, location.minY);
+        if (id < 0) {
+            return -1;
         }
-        return -1;
+        return assignVehicle(vehiclePool[id], person, location, destination);
     }
 
+    /** Adds a Vehicle to the pool and, if it is available, to the index. */
     public int addVehicleToPool(Vehicle vehicle) {
-        if(vehiclePool.add(vehicle)) {
-            idleVehicles.add(vehicle);
-            return 0;
+        int id = vehicle.idNum;
+        if (id < 0 || id >= vehiclePool.length) {
+            return -1;
         }
-        return -1;
+        vehiclePool[id] = vehicle;
+        Int2D loc = vehicle.getLocation();
+        cells[id] = loc.x * gridHeight + loc.y;
+        addVehicle(vehicle);
+        return 0;
+    }
+
+    /** Adds a Vehicle of the pool to the index if it has no passengers or
+     * assignment, as when its last passenger gets out.
+     */
+    public void addVehicle(Vehicle vehicle) {
+        int id = vehicle.idNum;
+        if (buckets[id] >= 0 || !isAvailable(id)) {
+            return;
+        }
+        link(id, getBucket(cells[id]));
+        numIndexed++;
     }
 
     private int assignVehicle(Vehicle vehicle,
                               Person person,
                               Intersection start,
                               Intersection end) {
-        return -1;
+        int id = vehicle.idNum;
+        removeVehicle(id);
+        DriverAgent driver = (DriverAgent)vehicle.getDriver();
+        driver.assignVehicle(person, start, end);
+        clients[id] = person;
+        pickUps[id] = start;
+        numAssigned++;
+        // a Vehicle already in the pickup Intersection need not come back
+        int cell = cells[id];
+        if (ac.intersectionGrid.field[cell / gridHeight][cell % gridHeight]
+            == start.idNum) {
+            arrivals.add(vehicle);
+        }
+        return id;
     }
 
     /*
@@ -73,16 +242,437 @@ public class DispatchAgent implements Steppable, Dispatcher {
      *
      * @param id (required) int label for this class. Should be unique but
      * uniqueness is not checked.
+     * @param ac the AgentCity whose Vehicles are dispatched.
+     * @param poolSize number of Vehicles, which are numbered from zero.
+     * @param bucketSize width in cells of a bucket of the spatial index.
+     * @param batchSteps steps over which requests are collected before
+     * they are matched, or zero to dispatch each request as it arrives.
+     * @param numCandidates number of nearest Vehicles each request of a
+     * batch may be matched to.
      */
-
-    public DispatchAgent(int id, int poolSize) {
+    public DispatchAgent(int id, AgentCity ac, int poolSize, int bucketSize,
+                         int batchSteps, int numCandidates) {
+        if (bucketSize < 1) {
+            throw new IllegalArgumentException("bucketSize must be positive");
+        }
+        if (batchSteps < 0) {
+            throw new IllegalArgumentException("batchSteps must not be negative");
+        }
+        if (numCandidates < 1) {
+            throw new IllegalArgumentException("numCandidates must be positive");
+        }
         idNum = id;
-        vehiclePool = new Bag(poolSize);
-        idleVehicles = new Bag(poolSize);
+        this.ac = ac;
+        gridWidth = ac.gridWidth;
+        gridHeight = ac.gridHeight;
+        this.bucketSize = bucketSize;
+        this.batchSteps = batchSteps;
+        this.numCandidates = numCandidates;
+        bucketsWide = (gridWidth + bucketSize - 1) / bucketSize;
+        bucketsHigh = (gridHeight + bucketSize - 1) / bucketSize;
+        vehiclePool = new Vehicle[poolSize];
+        heads = new int[bucketsWide * bucketsHigh];
+        Arrays.fill(heads, -1);
+        next = new int[poolSize];
+        prev = new int[poolSize];
+        buckets = new int[poolSize];
+        Arrays.fill(buckets, -1);
+        cells = new int[poolSize];
+        clients = new Person[poolSize];
+        pickUps = new Intersection[poolSize];
+        nearIds = new int[numCandidates];
+        nearDists = new int[numCandidates];
+        columns = new int[poolSize];
+        Arrays.fill(columns, -1);
+    }
+
+    /** Constructor dispatching each request as it arrives. */
+    public DispatchAgent(int id, AgentCity ac, int poolSize, int bucketSize) {
+        this(id, ac, poolSize, bucketSize, 0, DEFAULT_CANDIDATES);
+    }
+
+    /** Constructor with buckets of the default size. */
+    public DispatchAgent(int id, AgentCity ac, int poolSize) {
+        this(id, ac, poolSize, DEFAULT_BUCKET_SIZE);
+    }
+
+    // Spatial index
+
+    private int getBucket(int cell) {
+        return (cell / gridHeight / bucketSize) * bucketsHigh
+            + (cell % gridHeight) / bucketSize;
+    }
+
+    private boolean isAvailable(int id) {
+        return clients[id] == null && !vehiclePool[id].hasPassengers();
+    }
+
+    private void link(int id, int bucket) {
+        buckets[id] = bucket;
+        prev[id] = -1;
+        next[id] = heads[bucket];
+        if (heads[bucket] >= 0) {
+            prev[heads[bucket]] = id;
+        }
+        heads[bucket] = id;
+    }
+
+    private void unlink(int id) {
+        int bucket = buckets[id];
+        if (prev[id] >= 0) {
+            next[prev[id]] = next[id];
+        } else {
+            heads[bucket] = next[id];
+        }
+        if (next[id] >= 0) {
+            prev[next[id]] = prev[id];
+        }
+        buckets[id] = -1;
+    }
+
+    private void removeVehicle(int id) {
+        if (buckets[id] >= 0) {
+            unlink(id);
+            numIndexed--;
+        }
+    }
+
+    /** Notes that a Vehicle moved to the provided cell and, if not zero,
+     * entered the provided Intersection. Called by AgentCity for every
+     * move.
+     */
+    void moveVehicle(int id, int toCell, int entered) {
+        cells[id] = toCell;
+        int bucket = buckets[id];
+        if (bucket >= 0) {
+            int newBucket = getBucket(toCell);
+            if (newBucket != bucket) {
+                unlink(id);
+                link(id, newBucket);
+            }
+        }
+        if (entered != 0 && pickUps[id] != null
+            && pickUps[id].idNum == entered) {
+            arrivals.add(vehiclePool[id]);
+        }
+    }
+
+    /** Gets the ID number of the available Vehicle nearest the provided
+     * cell by Manhattan distance, or -1 if there is none. Vehicles found to
+     * be unavailable are dropped from the index.
+     */
+    int findNearest(int x, int y) {
+        return (findNearest(x, y, 1) > 0) ? nearIds[0] : -1;
+    }
+
+    /** Finds up to k available Vehicles nearest the provided cell, nearest
+     * first, and puts their ID numbers and distances in nearIds and
+     * nearDists. Of Vehicles at the same distance those found first come
+     * first.
+     *
+     * @return the number of Vehicles found.
+     */
+    private int findNearest(int x, int y, int k) {
+        if (nearIds.length < k) {
+            nearIds = new int[k];
+            nearDists = new int[k];
+        }
+        int bx = x / bucketSize;
+        int by = y / bucketSize;
+        int maxRing = Math.max(Math.max(bx, bucketsWide - 1 - bx),
+                               Math.max(by, bucketsHigh - 1 - by));
+        int found = 0;
+        for (int r = 0; r <= maxRing && numIndexed > 0; r++) {
+            // every cell of ring r + 1 is more than r * bucketSize away
+            for (int i = bx - r; i <= bx + r; i++) {
+                if (i < 0 || i >= bucketsWide) continue;
+                boolean edge = (i == bx - r || i == bx + r);
+                for (int j = by - r; j <= by + r; j += edge ? 1 : 2 * r) {
+                    if (j < 0 || j >= bucketsHigh) continue;
+                    int id = heads[i * bucketsHigh + j];
+                    while (id >= 0) {
+                        int following = next[id];
+                        if (!isAvailable(id)) {
+                            removeVehicle(id);
+                        } else {
+                            int cell = cells[id];
+                            int dist = Math.abs(cell / gridHeight - x)
+                                + Math.abs(cell % gridHeight - y);
+                            if (found < k || dist < nearDists[k - 1]) {
+                                // insert after any at the same distance
+                                int n = (found < k) ? found++ : k - 1;
+                                while (n > 0 && nearDists[n - 1] > dist) {
+                                    nearIds[n] = nearIds[n - 1];
+                                    nearDists[n] = nearDists[n - 1];
+                                    n--;
+                                }
+                                nearIds[n] = id;
+                                nearDists[n] = dist;
+                            }
+                        }
+                        id = following;
+                    }
+                }
+            }
+            if (found == k && nearDists[k - 1] <= r * bucketSize) {
+                break;
+            }
+        }
+        return found;
     }
 
+    // Batch matching
+
+    /** Matches the provided requests to available Vehicles, putting the ID
+     * number of the Vehicle matched to each request, or -1, in matches.
+     *
+     * @return the number of requests matched.
+     */
+    int solve(Bag batch) {
+        int n = batch.numObjs;
+        if (matches.length < n) {
+            matches = new int[n];
+            candStarts = new int[n];
+            candEnds = new int[n];
+        }
+        if (originCounts == null) {
+            int numOrigins = ac.intersections.length;
+            originCounts = new int[numOrigins];
+            originRanks = new int[numOrigins];
+            originStarts = new int[numOrigins];
+            originEnds = new int[numOrigins];
+        }
+        for (int i = 0; i < n; i++) {
+            originCounts[((Person)batch.objs[i]).getOrigin().idNum]++;
+        }
+        // search once per origin for enough Vehicles that its m requests
+        // may take windows of numCandidates starting at 0 to m - 1
+        int numCands = 0;
+        for (int i = 0; i < n; i++) {
+            Intersection origin = ((Person)batch.objs[i]).getOrigin();
+            int o = origin.idNum;
+            if (originRanks[o] == 0) {
+                int found = findNearest(origin.minX, origin.minY,
+                                        originCounts[o] + numCandidates - 1);
+                if (candIds.length < numCands + found) {
+                    int length = Math.max(2 * candIds.length,
+                                          numCands + found);
+                    candIds = Arrays.copyOf(candIds, length);
+                    candDists = Arrays.copyOf(candDists, length);
+                }
+                System.arraycopy(nearIds, 0, candIds, numCands, found);
+                System.arraycopy(nearDists, 0, candDists, numCands, found);
+                originStarts[o] = numCands;
+                numCands += found;
+                originEnds[o] = numCands;
+            }
+            int rank = originRanks[o]++;
+            candStarts[i] = Math.min(originStarts[o] + rank, originEnds[o]);
+            candEnds[i] = Math.min(candStarts[i] + numCandidates,
+                                   originEnds[o]);
+        }
+        for (int i = 0; i < n; i++) {
+            int o = ((Person)batch.objs[i]).getOrigin().idNum;
+            originCounts[o] = 0;
+            originRanks[o] = 0;
+        }
+        // a column for each candidate Vehicle
+        int numVehicles = 0;
+        for (int c = 0; c < numCands; c++) {
+            int id = candIds[c];
+            if (columns[id] < 0) {
+                if (columnIds.length == numVehicles) {
+                    columnIds = Arrays.copyOf(columnIds,
+                                              Math.max(16, 2 * numVehicles));
+                }
+                columns[id] = numVehicles;
+                columnIds[numVehicles++] = id;
+            }
+        }
+        buildAuction(n, numVehicles);
+        auction(n + numVehicles);
+        int numMatched = 0;
+        for (int i = 0; i < n; i++) {
+            int col = assigned[i];
+            matches[i] = (col < numVehicles) ? columnIds[col] : -1;
+            if (matches[i] >= 0) numMatched++;
+        }
+        for (int k = 0; k < numVehicles; k++) {
+            columns[columnIds[k]] = -1;
+        }
+        return numMatched;
+    }
+
+    /** Builds the rows of the auction of n requests and the provided number
+     * of candidate Vehicles. Request i may take the columns of its
+     * candidates or its own unmatched column n + i, at a value of minus the
+     * distance. The idle row of Vehicle k may take column k or the unmatched
+     * column of any request linked to it, at a value of zero, so that every
+     * matching of requests to Vehicles is a complete assignment of rows to
+     * columns of the same value.
+     */
+    private void buildAuction(int n, int numVehicles) {
+        int numRows = n + numVehicles;
+        int unmatchedValue = -(gridWidth + gridHeight) * PRICE_SCALE;
+        if (rowStarts.length < numRows + 1) {
+            int length = Math.max(2 * rowStarts.length, numRows + 1);
+            rowStarts = new int[length];
+            prices = new int[length];
+            owners = new int[length];
+            assigned = new int[length];
+            unassigned = new int[length];
+        }
+        // count the edges of each row, then fill them from its start
+        Arrays.fill(rowStarts, 0, numRows + 1, 0);
+        for (int i = 0; i < n; i++) {
+            rowStarts[i + 1] += candEnds[i] - candStarts[i] + 1;
+            for (int c = candStarts[i]; c < candEnds[i]; c++) {
+                rowStarts[n + columns[candIds[c]] + 1]++;
+            }
+        }
+        for (int k = 0; k < numVehicles; k++) {
+            rowStarts[n + k + 1]++;
+        }
+        for (int r = 0; r < numRows; r++) {
+            rowStarts[r + 1] += rowStarts[r];
+            assigned[r] = rowStarts[r];
+        }
+        int numEdges = rowStarts[numRows];
+        if (edgeCols.length < numEdges) {
+            int length = Math.max(2 * edgeCols.length, numEdges);
+            edgeCols = new int[length];
+            edgeValues = new int[length];
+        }
+        int e;
+        for (int i = 0; i < n; i++) {
+            for (int c = candStarts[i]; c < candEnds[i]; c++) {
+                int k = columns[candIds[c]];
+                e = assigned[i]++;
+                edgeCols[e] = k;
+                edgeValues[e] = -candDists[c] * PRICE_SCALE;
+                e = assigned[n + k]++;
+                edgeCols[e] = numVehicles + i;
+                edgeValues[e] = 0;
+            }
+            e = assigned[i]++;
+            edgeCols[e] = numVehicles + i;
+            edgeValues[e] = unmatchedValue;
+        }
+        for (int k = 0; k < numVehicles; k++) {
+            e = assigned[n + k]++;
+            edgeCols[e] = k;
+            edgeValues[e] = 0;
+        }
+    }
+
+    /** Runs a forward auction over the rows and columns built by
+     * buildAuction, putting the column of each row in assigned. Each
+     * unassigned row bids for its best column at current prices, raising
+     * the price by the margin over its next best plus a bid increment and
+     * displacing the owner. The auction is run again with the prices of the
+     * last round and a smaller increment until the increment is one unit,
+     * so that prices climb in large steps where many rows compete for few
+     * columns.
+     */
+    private void auction(int numRows) {
+        Arrays.fill(prices, 0, numRows, 0);
+        int epsilon = (gridWidth + gridHeight) * PRICE_SCALE;
+        while (true) {
+            epsilon = Math.max(1, epsilon / EPSILON_FACTOR);
+            Arrays.fill(owners, 0, numRows, -1);
+            int top = 0;
+            for (int r = numRows - 1; r >= 0; r--) {
+                assigned[r] = -1;
+                unassigned[top++] = r;
+            }
+            while (top > 0) {
+                int r = unassigned[--top];
+                int best = Integer.MIN_VALUE;
+                int second = Integer.MIN_VALUE;
+                int bestCol = -1;
+                for (int e = rowStarts[r]; e < rowStarts[r + 1]; e++) {
+                    int value = edgeValues[e] - prices[edgeCols[e]];
+                    if (value > best) {
+                        second = best;
+                        best = value;
+                        bestCol = edgeCols[e];
+                    } else if (value > second) {
+                        second = value;
+                    }
+                }
+                prices[bestCol] += (second == Integer.MIN_VALUE)
+                    ? epsilon : best - second + epsilon;
+                int owner = owners[bestCol];
+                owners[bestCol] = r;
+                assigned[r] = bestCol;
+                if (owner >= 0) {
+                    assigned[owner] = -1;
+                    unassigned[top++] = owner;
+                }
+            }
+            if (epsilon == 1) {
+                break;
+            }
+        }
+    }
+
+    /** Matches the requests of the batch and assigns each matched Vehicle.
+     * Unmatched Persons wait for a passing Vehicle.
+     */
+    private void matchRequests() {
+        long start = System.nanoTime();
+        solve(requests);
+        long nanos = System.nanoTime() - start;
+        numBatches++;
+        solveNanos += nanos;
+        maxSolveNanos = Math.max(maxSolveNanos, nanos);
+        Person person;
+        for (int i = 0; i < requests.numObjs; i++) {
+            person = (Person)requests.objs[i];
+            if (matches[i] >= 0) {
+                assignVehicle(vehiclePool[matches[i]], person,
+                              person.getOrigin(), person.getDestination());
+            } else {
+                ac.waitForVehicle(person);
+            }
+        }
+        requests.clear();
+    }
+
+    /** Boards each Person whose assigned Vehicle entered its pickup and, at
+     * the end of each batch window, matches the requests collected.
+     */
     public void step(final SimState state) {
-        AgentCity ac = (AgentCity)state;
+        ac = (AgentCity)state;
         step = ac.schedule.getSteps();
+        Vehicle vehicle;
+        Person person;
+        int id;
+        for (int i = 0; i < arrivals.numObjs; i++) {
+            vehicle = (Vehicle)arrivals.objs[i];
+            id = vehicle.idNum;
+            person = clients[id];
+            if (person == null) continue;
+            clients[id] = null;
+            pickUps[id] = null;
+            numAssigned--;
+            ((DriverAgent)vehicle.getDriver()).clearAssignment();
+            if (person.boardWaiting(vehicle, step)) {
+                ac.addTraveler(person);
+            } else {
+                // wait for another Vehicle as if just arrived
+                addVehicle(vehicle);
+                ac.addPerson(person);
+            }
+        }
+        arrivals.clear();
+        // a window is closed by the first step at or after its end, so no
+        // request is held forever if the step count skips the exact step
+        if (batchSteps > 0 && step >= batchEnd) {
+            batchEnd = step - step % batchSteps + batchSteps;
+            if (requests.numObjs > 0) {
+                matchRequests();
+            }
+        }
     }
 }
@@ -11,10 +11,13 @@ import java.util.Arrays;
  * Generic agent for controlling {@link Vehicle} objects.
  */
 
-public class DriverAgent implements Steppable, Driver {
+public class DriverAgent implements Steppable, Driver, TwoPhaseAgent {
 
     // MASON
     private static final long serialVersionUID = 1;
+
+    // Utility
+    private static final int PATH_LEN = 16;
     Stoppable stopper;
     long step;
 
@@ -25,9 +28,6 @@ public class DriverAgent implements Steppable, Driver {
     private AgentCity ac;
 
     public Vehicle vehicle = null;
-    public Int2D location;
-    public Direction direction;
-    public int speed;
     public int maxSpeed;
 
     public Driver.Directive nextDirective = Driver.Directive.NONE;
@@ -38,10 +38,24 @@ public class DriverAgent implements Steppable, Driver {
     public long reservationTime;
 
     public Waypoint[] waypoints;
-    public Waypoint nextWaypoint;
+    public Waypoint nextWaypoint = new Waypoint(null, Driver.Directive.NONE);
     public boolean atWaypoint = false;
     public boolean nearWaypoint = false;
     public int stepsToWaypoint;
+    // Waypoint arrays reused by updateDestination and updateReservation
+    private final Waypoint[] approachWaypoints = newWaypoints(2);
+    private final Waypoint[] approachTurnWaypoints = newWaypoints(3);
+    private final Waypoint[] departWaypoints = newWaypoints(1);
+    private final Waypoint[] departTurnWaypoints = newWaypoints(2);
+    // Departure legs toward a passenger destination
+    private Int2D[] legBuffer = new Int2D[8];
+    // Scratch buffers of the reservation path builder: the cells reached on
+    // each step of a path to a waypoint and the cells covered on each step
+    private final int[] stepX = new int[PATH_LEN];
+    private final int[] stepY = new int[PATH_LEN];
+    private Int2D[][] pathBuffer = new Int2D[PATH_LEN][0];
+    // Paths the template cache cannot key, by number of steps
+    private Int2D[][][] uncachedPaths = new Int2D[PATH_LEN + 1][][];
 
     public Int2D destination = null;
     public Intersection nextIntersection;
@@ -53,7 +67,6 @@ public class DriverAgent implements Steppable, Driver {
     public boolean nearIntersection = false;
     public boolean nearApproachLeg = false;
     public boolean atApproachLeg = false;
-    public boolean hasReservation = false;
     public boolean inIntersection = false;
     public boolean nearNextLeg = false;
     public boolean atNextLeg = false;
@@ -61,19 +74,58 @@ public class DriverAgent implements Steppable, Driver {
     public boolean laneOnRight = false;
 
     public boolean hasAssignment = false;
+    // Intersection of the Person this driver is sent to pick up
+    private Intersection pickUp = null;
+
+    // Results of the read-only decide pass used by commit()
+    private boolean decided = false;
+    private boolean decidedSafeMerge;
+    // Route choice up to its random draw, if planned: the legs to draw
+    // from are the first plannedNumLegs of legBuffer
+    private boolean plannedRoute;
+    private Intersection plannedIntersection;
+    private Int2D plannedApproachLeg;
+    private Intersection plannedDestination;
+    private int plannedNumLegs;
+    // Template of the reservation commit is expected to request, or null
+    private ReservationTemplate plannedTemplate;
+    private IntersectionAgent plannedController;
+    private long plannedKey;
+    private boolean plannedCached;
+    private final Waypoint[] plannedDepartWaypoints = newWaypoints(1);
+    private final Waypoint[] plannedDepartTurnWaypoints = newWaypoints(2);
 
     // Accessors
     public Vehicle getVehicle() { return vehicle; }
     public void setVehicle(Vehicle v) {
         vehicle = v;
         maxSpeed = v.MAX_SPEED;
+        pathBuffer = new Int2D[PATH_LEN][maxSpeed];
+        uncachedPaths = new Int2D[PATH_LEN + 1][][];
     }
+    /** Gets the location of the Vehicle from its slot of the VehicleState. */
+    public Int2D getLocation() { return vehicle.getLocation(); }
+    /** Gets the direction of the Vehicle from its slot. */
+    public Direction getDirection() { return vehicle.getDirection(); }
+    /** Gets the speed of the Vehicle from its slot. */
+    public int getSpeed() { return vehicle.getSpeed(); }
+    /** True if the Vehicle holds a reservation, from its slot. */
+    public boolean hasReservation() { return vehicle.hasReservation(); }
     public Driver.Directive getNextDirective() { return nextDirective; }
     public int getDesiredSpeed() { return desiredSpeed; }
+    /** Sends this driver to pick up a Person at the provided Intersection.
+     * Until the assignment is cleared no other Person may board.
+     */
     public int assignVehicle(Person person,
                              Intersection pickUp,
                              Intersection dropOff) {
-        return -1;
+        this.pickUp = pickUp;
+        hasAssignment = true;
+        return idNum;
+    }
+    public void clearAssignment() {
+        pickUp = null;
+        hasAssignment = false;
     }
 
     @Override
@@ -88,7 +140,7 @@ public class DriverAgent implements Steppable, Driver {
             .append(", ")
             //.append("destination: " + destination)
             //.append(", ")
-            .append("hasReservation: " + hasReservation)
+            .append("hasReservation: " + hasReservation())
             .append(", ")
             .append("nextApproachLeg: " + nextApproachLeg)
             .append(", ")
@@ -130,75 +182,14 @@ public class DriverAgent implements Steppable, Driver {
 
     /**
      * Gets the get the maximum safe speed for the {@link Vehicle} on the next
-     * step.
+     * step from the {@link SafeSpeedField} of the simulation.
      *
      * @param ac the current state of the simulation.
-     * @param loc currrent location of {@link Vehicle}.
-     * @param dir currrent location of {@link Vehicle}.
      *
      * @return the maximum safe speed.
      */
-    int getSafeSpeed(AgentCity ac, int locX, int locY, Direction dir,
-                     int depth) {
-
-        Int2D cell;
-
-        int MAX_DEPTH = 16;
-        if (depth > MAX_DEPTH) {return 0;}
-
-        // for each cell ahead of vehicle, check for obstacles and boundaries.
-        for (int i = 0; i < maxSpeed; i++) { // Check cells out to maxSpeed
-            cell = getCellAhead(locX, locY, dir, i + 1);
-            // check if cell is on grid
-            if (!ac.checkBounds(cell.x, cell.y)) { return i; }
-            // check if cell is a road cell
-            if (ac.roadGrid.get(cell.x, cell.y) == 0) { return i; }
-            // get any vehicles on cell
-            Bag b = ac.agentGrid.getObjectsAtLocation(cell.x, cell.y);
-            if (b != null) { // if there is another vehicle at the cell
-                // get the other vehicle
-                Vehicle otherVehicle = (Vehicle)b.objs[0];
-                // check for gridlock
-                if (otherVehicle.equals(this.getVehicle())) {
-                    return 1;
-                }
-                // check if the other vehicle has a reservation
-                if (!otherVehicle.hasReservation ||
-                    ac.roadGrid.get(cell.x, cell.y) != 9) { return i; }
-                // get more information about the other vehicle
-                Direction otherDirection = otherVehicle.getDirection();
-                int otherSafeSpeed = getSafeSpeed(ac, cell.x, cell.y,
-                                                  otherDirection, depth+1);
-                // check if other vehicle can move
-                if (otherSafeSpeed < 1) { return i; }
-                // check if other vehicle is traveling in the same direction
-                if (otherDirection == dir) {
-                    // get more information about the other vehicle
-                    int otherSpeed = otherVehicle.getSpeed();
-                    // check if the other vehicle is slow
-                    if (i + otherSpeed + 1 < maxSpeed) {
-                        return i + otherSpeed + 1;
-                    }
-                    // check if other vehicle will stop for an obstacle
-                    if (i + otherSafeSpeed < maxSpeed) {
-                        return i + otherSafeSpeed;
-                    }
-                    // the path is clear up to maxSpeed
-                    break;
-                }
-            }
-        }
-        // return maxSpeed since no obstacles or boundaries found
-        return maxSpeed;
-    }
-
     int getSafeSpeed(AgentCity ac) {
-        return getSafeSpeed(ac, this.location.x, this.location.y,
-                            this.direction, 0);
-    }
-
-    int getSafeSpeed(AgentCity ac, Int2D loc, Direction dir) {
-        return getSafeSpeed(ac, loc.x, loc.y, dir, 4);
+        return ac.safeSpeedField.get(vehicle.idNum, maxSpeed);
     }
 
     /**
@@ -210,6 +201,10 @@ public class DriverAgent implements Steppable, Driver {
      * @return the intersection ahead of the {@link Vehicle}.
      */
     Intersection getIntersectionAhead(AgentCity ac, Int2D loc) {
+        int id = ac.roadTopology.getNextIntersection(loc.x, loc.y);
+        if (id != 0) {
+            return ac.intersections[id];
+        }
         int cellX = loc.x;
         int cellY = loc.y;
         Direction cellDirection = Direction.byInt(ac.roadGrid.get(cellX, cellY));
@@ -244,6 +239,10 @@ public class DriverAgent implements Steppable, Driver {
     }
 
     Int2D getNextApproachLeg(AgentCity ac, Intersection in, Int2D loc, Direction dir) {
+        Int2D leg = ac.roadTopology.getApproachLeg(loc.x, loc.y, dir);
+        if (leg != null) {
+            return leg;
+        }
         int cellX = loc.x;
         int cellY = loc.y;
         int nextX = cellX + dir.getXOffset();
@@ -259,6 +258,13 @@ public class DriverAgent implements Steppable, Driver {
         return new Int2D(cellX, cellY);
     }
 
+    /** Gets a shared Int2D for the cell at (x, y) if it is a road cell. */
+    Int2D getLocation(AgentCity ac, int x, int y) {
+        int r = ac.roadTopology.getRoadId(x, y);
+        if (r == RoadTopology.NONE) return new Int2D(x, y);
+        return ac.roadTopology.getLocation(r);
+    }
+
     Int2D setTurnCell(AgentCity ac, Int2D leg, Int2D loc, Direction locDir) {
         int cellX;
         int cellY;
@@ -268,30 +274,30 @@ public class DriverAgent implements Steppable, Driver {
                 + Math.abs(legDir.getYOffset()) * loc.x;
             cellY = Math.abs(locDir.getYOffset()) * leg.y
                 + Math.abs(legDir.getXOffset()) * loc.y;
-            nextLeg = new Int2D(cellX, cellY);
+            nextLeg = getLocation(ac, cellX, cellY);
         } else {
             cellX = Math.abs(locDir.getXOffset()) * leg.x
                 + Math.abs(legDir.getXOffset()) * loc.x;
             cellY = Math.abs(locDir.getYOffset()) * leg.y
                 + Math.abs(legDir.getYOffset()) * loc.y;
         }
-        return new Int2D(cellX, cellY);
+        return getLocation(ac, cellX, cellY);
     }
 
-    Int2D[] getPathToCell(Int2D cell,
-                          Int2D loc,
-                          Direction dir,
-                          int currentSpeed,
-                          int desiredSpeed,
-                          boolean stopAtCell) {
+    /** Fills stepX and stepY with the cell reached on each step of the path
+     * to the provided cell and returns the number of steps.
+     */
+    int getPathToCell(Int2D cell,
+                      Int2D loc,
+                      Direction dir,
+                      int currentSpeed,
+                      int desiredSpeed,
+                      boolean stopAtCell) {
 
-        final int TMP_LEN = 16;
-        Int2D[] tmp = new Int2D[TMP_LEN];
         int speed = currentSpeed;
         int x = loc.x;
         int y = loc.y;
         int i = 0;
-        Int2D[] path;
 
         int dist = getGapToCell(cell, loc, dir) + 1;
         if (dist < 0) {
@@ -308,39 +314,35 @@ public class DriverAgent implements Steppable, Driver {
         while (dist > 0) {
             if (speed < desiredSpeed) speed++;
             speed = (dist < speed && stopAtCell) ? dist : speed;
-            tmp[i] = getCellAhead(x, y, dir, speed);
-            x = tmp[i].x;
-            y = tmp[i].y;
+            x += speed * dir.getXOffset();
+            y += speed * dir.getYOffset();
+            stepX[i] = x;
+            stepY[i] = y;
             dist -= speed;
             i++;
         }
-        // trim tmp and copy to path
-        path = new Int2D[i];
-        for (int j = 0; j < path.length; j++) {
-            path[j] = tmp[j];
-        }
-        return path;
+        return i;
     }
 
-    Int2D[] getPathToCell(Int2D cell) {
+    int getPathToCell(Int2D cell) {
         return getPathToCell(cell,
-                             location,
-                             direction,
-                             speed,
+                             getLocation(),
+                             getDirection(),
+                             getSpeed(),
                              maxSpeed,
                              true);
     }
 
-    Int2D[] getPathToCell(Int2D cell, boolean stopAtCell) {
-        return getPathToCell(cell, location, direction, speed, maxSpeed,
-                             stopAtCell);
+    int getPathToCell(Int2D cell, boolean stopAtCell) {
+        return getPathToCell(cell, getLocation(), getDirection(), getSpeed(),
+                             maxSpeed, stopAtCell);
     }
 
-    Int2D[] getPathToWaypoint(Waypoint waypoint,
-                              Int2D loc,
-                              Direction dir,
-                              int currentSpeed,
-                              int desiredSpeed) {
+    int getPathToWaypoint(Waypoint waypoint,
+                          Int2D loc,
+                          Direction dir,
+                          int currentSpeed,
+                          int desiredSpeed) {
 
         boolean stopAtCell =
             waypoint.directive != Driver.Directive.MOVE_FORWARD;
@@ -349,16 +351,115 @@ public class DriverAgent implements Steppable, Driver {
                              desiredSpeed, stopAtCell);
     }
 
+    /** Gets the reservation path for the provided waypoints from the
+     * template cache of the IntersectionAgent of nextIntersection, building
+     * and caching it if needed. Returns null if the movement cannot be
+     * keyed, in which case getUncachedPath builds the path.
+     */
+    ReservationTemplate getReservationTemplate(Waypoint[] waypoints) {
+        long key = getTemplateKey(waypoints);
+        if (key < 0) return null;
+        IntersectionAgent controller = ac.getController(nextIntersection);
+        if (plannedTemplate != null && plannedKey == key
+            && plannedController == controller) {
+            // looked up or built by the decide pass
+            if (plannedCached) return plannedTemplate;
+            ReservationTemplate template =
+                controller.getReservationTemplate(key);
+            if (template == null) {
+                template = plannedTemplate;
+                controller.putReservationTemplate(key, template);
+            }
+            return template;
+        }
+        ReservationTemplate template = controller.getReservationTemplate(key);
+        if (template == null) {
+            template = new ReservationTemplate(getReservationPath(waypoints));
+            controller.putReservationTemplate(key, template);
+        }
+        return template;
+    }
+
+    /** Builds the reservation path for the provided waypoints in a path
+     * owned by this DriverAgent, which is overwritten by the next uncached
+     * path of the same length.
+     */
+    Int2D[][] getUncachedPath(Waypoint[] waypoints) {
+        int k = fillPathBuffer(waypoints, getLocation(), getDirection(),
+                               getSpeed(), maxSpeed);
+        int m = getPathStart(waypoints, desiredSpeed);
+        Int2D[][] path = uncachedPaths[k - m];
+        if (path == null) {
+            path = new Int2D[k - m][maxSpeed];
+            uncachedPaths[k - m] = path;
+        }
+        return copyPath(m, path);
+    }
+
+    /** Packs everything getReservationPath reads into a key that is unique
+     * for nextIntersection: the location relative to the Intersection,
+     * direction, speeds, whether this Vehicle is in the Intersection and
+     * the waypoints. Returns -1 if some value does not fit.
+     */
+    long getTemplateKey(Waypoint[] waypoints) {
+        return getTemplateKey(waypoints, desiredSpeed);
+    }
+
+    /** Gets the template key for the provided desired speed. */
+    private long getTemplateKey(Waypoint[] waypoints, int desiredSpeed) {
+        Int2D location = getLocation();
+        int speed = getSpeed();
+        int originX = nextIntersection.minX;
+        int originY = nextIntersection.minY;
+        int dx = location.x - originX + 64;
+        int dy = location.y - originY + 64;
+        if (dx < 0 || dx >= 128 || dy < 0 || dy >= 128
+            || speed < 0 || speed > 3
+            || desiredSpeed < 0 || desiredSpeed > 3
+            || maxSpeed < 0 || maxSpeed > 3
+            || waypoints.length < 1 || waypoints.length > 3) {
+            return -1;
+        }
+        long key = dx;
+        key = key << 7 | dy;
+        key = key << 4 | getDirection().toInt();
+        key = key << 2 | speed;
+        key = key << 2 | desiredSpeed;
+        key = key << 2 | maxSpeed;
+        key = key << 1 | (inIntersection ? 1 : 0);
+        key = key << 2 | waypoints.length;
+        for (int i = 0; i < waypoints.length; i++) {
+            int cx = waypoints[i].cell.x - originX + 8;
+            int cy = waypoints[i].cell.y - originY + 8;
+            if (cx < 0 || cx >= 16 || cy < 0 || cy >= 16) return -1;
+            key = key << 4 | cx;
+            key = key << 4 | cy;
+            key = key << 3 | waypoints[i].directive.ordinal();
+        }
+        return key;
+    }
+
     Int2D[][] getReservationPath(Waypoint[] waypoints) {
-        return getReservationPath(waypoints, location, direction,
-                                  speed, maxSpeed);
+        return getReservationPath(waypoints, desiredSpeed);
+    }
+
+    /** Builds the reservation path for the provided waypoints, starting
+     * where it starts for the provided desired speed.
+     */
+    private Int2D[][] getReservationPath(Waypoint[] waypoints,
+                                         int desiredSpeed) {
+        int k = fillPathBuffer(waypoints, getLocation(), getDirection(),
+                               getSpeed(), maxSpeed);
+        int m = getPathStart(waypoints, desiredSpeed);
+        return copyPath(m, new Int2D[k - m][maxSpeed]);
     }
 
-    Int2D[][] getReservationPath(Waypoint[] waypoints, Int2D loc, Direction dir,
-                                 int currentSpeed, int desiredSpeed) {
-        Int2D[] pathToWaypoint;
-        Int2D[][] tmpPath = new Int2D[16][maxSpeed];
-        Int2D[][] path;
+    /** Fills pathBuffer with the cells covered on each step of the path
+     * through the provided waypoints and returns the number of steps.
+     */
+    int fillPathBuffer(Waypoint[] waypoints, Int2D loc, Direction dir,
+                       int currentSpeed, int desiredSpeed) {
+        int steps;
         Int2D tmpLoc = loc;
         Direction tmpDir = dir;
         int tmpSpeed = currentSpeed;
@@ -374,14 +475,15 @@ public class DriverAgent implements Steppable, Driver {
                 tmpDir = tmpDir.byDirective(waypoints[i].directive);
                 continue;
             }
-            pathToWaypoint =
-                getPathToWaypoint(waypoints[i], tmpLoc, tmpDir, tmpSpeed,
-                                  desiredSpeed).clone();
-            for (int j = 0; j < pathToWaypoint.length; j++) {
-                dist = getGapToCell(pathToWaypoint[j], tmpLoc, tmpDir) + 1;
+            steps = getPathToWaypoint(waypoints[i], tmpLoc, tmpDir, tmpSpeed,
+                                      desiredSpeed);
+            for (int j = 0; j < steps; j++) {
+                dist = (stepX[j] - tmpLoc.x) * tmpDir.getXOffset()
+                    + (stepY[j] - tmpLoc.y) * tmpDir.getYOffset();
+                Arrays.fill(pathBuffer[k], dist, maxSpeed, null);
                 for(int l = dist - 1; l >= 0; l--) {
-                    tmpPath[k][l] = getCellAhead(tmpLoc, tmpDir, 1);
-                    tmpLoc = tmpPath[k][l];
+                    pathBuffer[k][l] = getCellAhead(tmpLoc, tmpDir, 1);
+                    tmpLoc = pathBuffer[k][l];
                 }
                 if (waypoints[i].directive == Driver.Directive.MOVE_FORWARD) {
                     tmpSpeed = dist;
@@ -392,25 +494,23 @@ public class DriverAgent implements Steppable, Driver {
             }
             tmpDir = tmpDir.byDirective(waypoints[i].directive);
         }
-        // copy tmpPath to trimmed path
-        int m = 0;
-        if (!inIntersection) {
-            m = getStepsToCell(getCellAhead(waypoints[0].cell, 1)) - 1;
-        }
-        path = new Int2D[k - m][maxSpeed];
-        for (int i = 0; i < k - m; i++) {
-            for (int j = 0; j < maxSpeed; j++) {
-                path[i][j] = tmpPath[i + m][j];
-            }
+        return k;
+    }
+
+    /** Gets the first step of pathBuffer that belongs to the reservation,
+     * skipping the steps taken before reaching the Intersection.
+     */
+    private int getPathStart(Waypoint[] waypoints, int desiredSpeed) {
+        if (inIntersection) return 0;
+        return getStepsToCell(getGapToCell(waypoints[0].cell) + 1,
+                              getSpeed(), desiredSpeed) - 1;
+    }
+
+    /** Copies the steps of pathBuffer from the provided start into path. */
+    private Int2D[][] copyPath(int start, Int2D[][] path) {
+        for (int i = 0; i < path.length; i++) {
+            System.arraycopy(pathBuffer[i + start], 0, path[i], 0, maxSpeed);
         }
-        /*
-          path = new Int2D[k][maxSpeed];
-          for (int i = 0; i < k; i++) {
-          for (int j = 0; j < maxSpeed; j++) {
-          path[i][j] = tmpPath[i][j];
-          }
-          }
-        */
         return path;
     }
 
@@ -519,9 +619,10 @@ public class DriverAgent implements Steppable, Driver {
       }
     */
 
+    /** Gets the shared Int2D of the cell offset cells ahead. */
     Int2D getCellAhead(int cellX, int cellY, Direction dir, int offset) {
-        return new Int2D(cellX + offset * dir.getXOffset(),
-                         cellY + offset * dir.getYOffset());
+        return getLocation(ac, cellX + offset * dir.getXOffset(),
+                           cellY + offset * dir.getYOffset());
     }
 
     Int2D getCellAhead(Int2D cell, Direction dir, int offset) {
@@ -529,11 +630,11 @@ public class DriverAgent implements Steppable, Driver {
     }
 
     Int2D getCellAhead(Int2D cell, int offset) {
-        return getCellAhead(cell.x, cell.y, direction, offset);
+        return getCellAhead(cell.x, cell.y, getDirection(), offset);
     }
 
     Int2D getCellAhead(int cellX, int cellY, int offset) {
-        return getCellAhead(cellX, cellY, this.direction, offset);
+        return getCellAhead(cellX, cellY, getDirection(), offset);
     }
 
     int getGapToCell(Int2D cell, Int2D loc, Direction dir) {
@@ -543,7 +644,7 @@ public class DriverAgent implements Steppable, Driver {
     }
 
     int getGapToCell(Int2D cell) {
-        return getGapToCell(cell, location, direction);
+        return getGapToCell(cell, getLocation(), getDirection());
     }
 
     int getStepsToCell(int gap, int currentSpeed, int desiredSpeed) {
@@ -567,15 +668,16 @@ public class DriverAgent implements Steppable, Driver {
     }
 
     int getStepsToCell(Int2D cell) {
-        return getStepsToCell(getGapToCell(cell), speed, desiredSpeed);
+        return getStepsToCell(getGapToCell(cell), getSpeed(), desiredSpeed);
     }
 
     Driver.Directive getTurnDirective(Direction dir) {
-        if (dir == this.direction) {
+        Direction direction = getDirection();
+        if (dir == direction) {
             return Driver.Directive.MOVE_FORWARD;
-        } else if (dir == this.direction.onRight()) {
+        } else if (dir == direction.onRight()) {
             return Driver.Directive.TURN_RIGHT;
-        } else if (dir == this.direction.onLeft()) {
+        } else if (dir == direction.onLeft()) {
             return Driver.Directive.TURN_LEFT;
         }
         return Driver.Directive.STOP;
@@ -583,7 +685,7 @@ public class DriverAgent implements Steppable, Driver {
 
     void updateReservation() {
         // cancel reservation if reservationTime can't be honored
-        if (hasReservation) {
+        if (hasReservation()) {
             int timeIndex = (int)(step - reservationTime);
             stepsToWaypoint = getStepsToCell(nextWaypoint.cell);
             /*
@@ -592,40 +694,55 @@ public class DriverAgent implements Steppable, Driver {
               && timeIndex < reservationPath.length
               && !location.equals(reservationPath[timeIndex][0]));
               if (cannotLeave) {
-              nextIntersection.cancelReservation(vehicle);
+              ac.getController(nextIntersection).cancelReservation(vehicle);
               hasReservation = false;
-              vehicle.hasReservation = false;
+              vehicle.setHasReservation(false);
               }
             */
         }
         // get a reservation if needed
-        if (!hasReservation) {
+        if (!hasReservation()) {
             reservationTime = step + 1;
             if (inIntersection) {
-                if (direction == nextDirection) {
-                    waypoints = new Waypoint[] {
-                        new Waypoint(nextLeg, Driver.Directive.MOVE_FORWARD)
-                    };
-                } else {
-                    waypoints = new Waypoint[] {
-                        new Waypoint(nextTurnCell,
-                                     getTurnDirective(nextDirection)),
-                        new Waypoint(nextLeg, Driver.Directive.MOVE_FORWARD)
-                    };
-                }
+                waypoints = getDepartureWaypoints(departWaypoints,
+                                                  departTurnWaypoints);
             } else {
+                // steps to the cell past the approach leg
                 reservationTime = step
-                    + getStepsToCell(getCellAhead(nextApproachLeg, 1));
+                    + getStepsToCell(getGapToCell(nextApproachLeg) + 1,
+                                     getSpeed(), desiredSpeed);
+            }
+            IntersectionAgent controller = ac.getController(nextIntersection);
+            ReservationTemplate template = getReservationTemplate(waypoints);
+            if (template != null) {
+                reservationPath = template.path;
+                vehicle.setHasReservation(
+                    controller.requestReservation(vehicle, reservationTime,
+                                                  template));
+            } else {
+                reservationPath = getUncachedPath(waypoints);
+                vehicle.setHasReservation(
+                    controller.requestReservation(vehicle, reservationTime,
+                                                  reservationPath));
             }
-            reservationPath = getReservationPath(waypoints);
-            hasReservation =
-                nextIntersection.requestReservation(vehicle,
-                                                    reservationTime,
-                                                    reservationPath);
-            vehicle.hasReservation = hasReservation;
         }
     }
 
+    /** Sets and returns the waypoints from inside the Intersection to
+     * nextLeg, using the first array if there is no turn and the second if
+     * there is.
+     */
+    private Waypoint[] getDepartureWaypoints(Waypoint[] straight,
+                                             Waypoint[] turn) {
+        if (getDirection() == nextDirection) {
+            straight[0].set(nextLeg, Driver.Directive.MOVE_FORWARD);
+            return straight;
+        }
+        turn[0].set(nextTurnCell, getTurnDirective(nextDirection));
+        turn[1].set(nextLeg, Driver.Directive.MOVE_FORWARD);
+        return turn;
+    }
+
     void updateReservation(AgentCity ac) {
         updateState(ac);
         updateReservation();
@@ -633,17 +750,14 @@ public class DriverAgent implements Steppable, Driver {
 
     void updateState(AgentCity ac) {
         step = ac.schedule.getSteps();
-        location = vehicle.getLocation();
-        direction = vehicle.getDirection();
-        speed = vehicle.getSpeed();
-        hasReservation = vehicle.hasReservation;
+        Int2D location = getLocation();
         inIntersection = ac.roadGrid.field[location.x][location.y] == 9;
     }
 
     private void checkReservation() {
         // check if Vehicle needs and has a reservation for its next turning
         // movement
-        if (!hasReservation) {
+        if (!hasReservation()) {
             if (nearApproachLeg) {
                 desiredSpeed = getGapToCell(nextApproachLeg) + 1;
                 nextDirective = Driver.Directive.STOP;
@@ -658,23 +772,21 @@ public class DriverAgent implements Steppable, Driver {
             }
         }
         if (nearApproachLeg) {
-            if (nextIntersection.legBlocked(nextLeg)) {
+            if (ac.getController(nextIntersection).legBlocked(nextLeg)) {
                 desiredSpeed = getGapToCell(nextApproachLeg) + 1;
                 nextDirective = Driver.Directive.STOP;
                 //nextIntersection.cancelReservation(vehicle);
-                vehicle.hasReservation = false;
-                hasReservation = false;
-                if (ac.AVOID_CONGESTION) updateDestination();
+                vehicle.setHasReservation(false);
+                if (ac.config.avoidCongestion) updateDestination();
             }
         }
         if (atApproachLeg) {
-            if (nextIntersection.legBlocked(nextLeg)) {
+            if (ac.getController(nextIntersection).legBlocked(nextLeg)) {
                 desiredSpeed = 0;
                 nextDirective = Driver.Directive.STOP;
                 //nextIntersection.cancelReservation(vehicle);
-                vehicle.hasReservation = false;
-                hasReservation = false;
-                if (ac.AVOID_CONGESTION) updateDestination();
+                vehicle.setHasReservation(false);
+                if (ac.config.avoidCongestion) updateDestination();
             }
         }
     }
@@ -687,7 +799,7 @@ public class DriverAgent implements Steppable, Driver {
         if (maxSafeSpeed < desiredSpeed) {
             desiredSpeed = maxSafeSpeed;
         }
-
+        vehicle.setCommand(nextDirective, desiredSpeed);
     }
 
     private boolean isOnTheWay(Intersection start,
@@ -706,13 +818,14 @@ public class DriverAgent implements Steppable, Driver {
     }
 
     public boolean allowTrip(Person person) {
+        if (hasAssignment) { return false; }
         boolean canAppendTrip = false;
         boolean canInsertTrip = false;
         Intersection newDestination = person.getDestination();
         Intersection lastDestination = getLastPassengerDestination();
         if (lastDestination == null) {
             canAppendTrip = true;
-        } else if (isOnTheWay(location,
+        } else if (isOnTheWay(getLocation(),
                               newDestination.getOrigin(),
                               lastDestination.getOrigin())) {
             canAppendTrip = true;
@@ -722,55 +835,134 @@ public class DriverAgent implements Steppable, Driver {
     }
 
     private Intersection getNextPassengerDestination() {
-        Intersection[] destinations = vehicle.getPassengerDestinations();
-        if (destinations == null) { return null; }
-        int idx = 0;
+        if (!vehicle.hasPassengers()) { return null; }
+        Bag manifest = vehicle.getManifest();
+        Int2D location = getLocation();
+        Intersection destination = null;
         long  dist = Long.MAX_VALUE;
         long tmpDist = 0;
-        for (int i = 0; i < destinations.length; i++) {
-            tmpDist = location.manhattanDistance(destinations[i].getOrigin());
-            if (tmpDist < dist) {
+        for (int i = 0; i < manifest.numObjs; i++) {
+            Intersection next = ((Person)manifest.objs[i]).getDestination();
+            tmpDist = location.manhattanDistance(next.getOrigin());
+            if (destination == null || tmpDist < dist) {
                 dist = tmpDist;
-                idx = i;
+                destination = next;
             }
         }
-        return destinations[idx];
+        return destination;
     }
 
     private Intersection getLastPassengerDestination() {
-        Intersection[] destinations = vehicle.getPassengerDestinations();
-        if (destinations == null) { return null; }
-        int idx = 0;
+        if (!vehicle.hasPassengers()) { return null; }
+        Bag manifest = vehicle.getManifest();
+        Int2D location = getLocation();
+        Intersection destination = null;
         long  dist = 0;
         long tmpDist = 0;
-        for (int i = 0; i < destinations.length; i++) {
-            tmpDist = location.manhattanDistance(destinations[i].getOrigin());
-            if (tmpDist > dist) {
+        for (int i = 0; i < manifest.numObjs; i++) {
+            Intersection next = ((Person)manifest.objs[i]).getDestination();
+            tmpDist = location.manhattanDistance(next.getOrigin());
+            if (destination == null || tmpDist > dist) {
                 dist = tmpDist;
-                idx = i;
+                destination = next;
             }
         }
-        return destinations[idx];
+        return destination;
     }
 
-    private void updateDestination() {
-        nextIntersection = getIntersectionAhead(ac, location);
+    /** Gathers the departure legs of an Intersection toward the
+     * provided destination into legBuffer and returns their number.
+     */
+    private int getLegsToward(Intersection in, Intersection destination) {
+        Direction xDir = in.getXDirectionTo(destination);
+        Direction yDir = in.getYDirectionTo(destination);
+        int numLegs = 0;
+        if (xDir != null) {
+            numLegs = addLegs(in.getDepartureLegsByDirection(ac, xDir),
+                              numLegs);
+        }
+        if (yDir != null) {
+            numLegs = addLegs(in.getDepartureLegsByDirection(ac, yDir),
+                              numLegs);
+        }
+        return numLegs;
+    }
 
+    private int addLegs(Int2D[] legs, int numLegs) {
+        if (numLegs + legs.length > legBuffer.length) {
+            legBuffer = Arrays.copyOf(legBuffer,
+                                      2 * (numLegs + legs.length));
+        }
+        System.arraycopy(legs, 0, legBuffer, numLegs, legs.length);
+        return numLegs + legs.length;
+    }
+
+    private static Waypoint[] newWaypoints(int n) {
+        Waypoint[] waypoints = new Waypoint[n];
+        for (int i = 0; i < n; i++) {
+            waypoints[i] = new Waypoint(null, Driver.Directive.NONE);
+        }
+        return waypoints;
+    }
+
+    /** Gets the Intersection this driver is headed for: its pick-up or,
+     * with smart turns, the nearest passenger destination. May be null.
+     */
+    private Intersection getDestination() {
+        if (hasAssignment) {
+            return pickUp;
+        } else if (ac.config.smartTurns && vehicle.meetsHovMin()) {
+            return getNextPassengerDestination();
+        }
+        return null;
+    }
+
+    /** Plans the part of updateDestination that does not draw a random
+     * number if act is expected to call it.
+     */
+    private void planDestination() {
+        plannedRoute = nextIntersection == null
+            || nextDirective == Driver.Directive.MERGE_LEFT
+            || nextDirective == Driver.Directive.MERGE_RIGHT
+            || getGapToCell(nextLeg) < 0;
+        if (!plannedRoute) return;
+        Int2D location = getLocation();
+        plannedIntersection = getIntersectionAhead(ac, location);
+        plannedApproachLeg = getNextApproachLeg(ac, plannedIntersection,
+                                                location, getDirection());
+        plannedDestination = getDestination();
+        plannedNumLegs = 0;
+        if (plannedDestination != null
+            && plannedDestination.idNum != plannedIntersection.idNum) {
+            plannedNumLegs = getLegsToward(plannedIntersection,
+                                           plannedDestination);
+        }
+    }
+
+    private void updateDestination() {
+        Int2D location = getLocation();
+        Direction direction = getDirection();
         // chose direction
-        if (ac.SMART_TURNS && vehicle.meetsHovMin()) {
-            Intersection destination = getNextPassengerDestination();
+        Intersection destination;
+        int numLegs = 0;
+        boolean planned = decided && plannedRoute;
+        if (planned) {
+            nextIntersection = plannedIntersection;
+            destination = plannedDestination;
+            numLegs = plannedNumLegs;
+        } else {
+            nextIntersection = getIntersectionAhead(ac, location);
+            destination = getDestination();
+            if (destination != null
+                && destination.idNum != nextIntersection.idNum) {
+                numLegs = getLegsToward(nextIntersection, destination);
+            }
+        }
+        if (destination != null) {
             if (destination.idNum == nextIntersection.idNum) {
                 nextLeg = getRandomDepartureLeg(ac, nextIntersection, direction);
             } else {
-                Direction[] directions =
-                    nextIntersection.getDirectionsTo(destination);
-                Bag legs = new Bag();
-                for (int i = 0; i < directions.length; i++) {
-                    if (directions[i] != null) {
-                        legs.addAll(nextIntersection.getDepartureLegsByDirection(ac, directions[i]));
-                    }
-                }
-                nextLeg = (Int2D)(legs.objs[ac.random.nextInt(legs.numObjs)]);
+                nextLeg = legBuffer[ac.random.nextInt(numLegs)];
             }
         } else {
             nextLeg = getRandomDepartureLeg(ac, nextIntersection, direction);
@@ -799,22 +991,20 @@ public class DriverAgent implements Steppable, Driver {
             nextDirection = Direction.byInt(ac.roadGrid.field[nextLeg.x][nextLeg.y]);
         }
         // set up next turning movement
-        nextApproachLeg = getNextApproachLeg(ac, nextIntersection, location, direction);
+        nextApproachLeg = planned ? plannedApproachLeg
+            : getNextApproachLeg(ac, nextIntersection, location, direction);
         nextTurnCell = setTurnCell(ac, nextLeg, location, direction);
         if (direction == nextDirection) {
-            waypoints = new Waypoint[] {
-                new Waypoint(nextApproachLeg, Driver.Directive.MOVE_FORWARD),
-                new Waypoint(nextLeg, Driver.Directive.MOVE_FORWARD)
-            };
+            waypoints = approachWaypoints;
+            waypoints[0].set(nextApproachLeg, Driver.Directive.MOVE_FORWARD);
+            waypoints[1].set(nextLeg, Driver.Directive.MOVE_FORWARD);
         } else {
-            waypoints = new Waypoint[] {
-                new Waypoint(nextApproachLeg, Driver.Directive.MOVE_FORWARD),
-                new Waypoint(nextTurnCell, getTurnDirective(nextDirection)),
-                new Waypoint(nextLeg, Driver.Directive.MOVE_FORWARD)
-            };
+            waypoints = approachTurnWaypoints;
+            waypoints[0].set(nextApproachLeg, Driver.Directive.MOVE_FORWARD);
+            waypoints[1].set(nextTurnCell, getTurnDirective(nextDirection));
+            waypoints[2].set(nextLeg, Driver.Directive.MOVE_FORWARD);
         }
-        nextWaypoint = new Waypoint(nextTurnCell,
-                                    getTurnDirective(nextDirection));
+        nextWaypoint.set(nextTurnCell, getTurnDirective(nextDirection));
     }
 
     /*
@@ -822,7 +1012,7 @@ public class DriverAgent implements Steppable, Driver {
         nextIntersection = getIntersectionAhead(ac, location);
         if (ac.LANE_POLICY) {
             if (vehicle.meetsHOVmin) {
-                if (ac.SMART_TURNS) {
+                if (ac.config.smartTurns) {
                     Intersection destination =
                         vehicle.getPassengerDestination();
                     if (destination.idNum == nextIntersection.idNum) {
@@ -893,7 +1083,9 @@ public class DriverAgent implements Steppable, Driver {
 
     boolean safeMerge(Direction dir) {
         Vehicle vehicle;
-        int speed = (this.speed < 1 ? this.speed + 1 : 1);
+        Int2D location = getLocation();
+        Direction direction = getDirection();
+        int speed = (getSpeed() < 1 ? getSpeed() + 1 : 1);
         int x = location.x + speed * direction.getXOffset() + dir.getXOffset();
         int y = location.y + speed * direction.getYOffset() + dir.getYOffset();
         if (!ac.checkBounds(x, y)) {
@@ -905,9 +1097,8 @@ public class DriverAgent implements Steppable, Driver {
         for (int i = 0; i < maxSpeed + 1; i++) {
             //System.out.println(x);
             //System.out.println(y);
-            if (ac.agentGrid.numObjectsAtLocation(x, y) > 0) {
-                vehicle =
-                    (Vehicle)ac.agentGrid.getObjectsAtLocation(x, y).objs[0];
+            vehicle = ac.getVehicleAt(x, y);
+            if (vehicle != null) {
                 if (vehicle.getSpeed() >= i - 1) {
                     //System.out.println(this);
                     //System.out.println(vehicle);
@@ -922,12 +1113,86 @@ public class DriverAgent implements Steppable, Driver {
         return true;
     }
 
+    /** Runs the read-only part of this step: the lane merge check, route
+     * choice up to its random draw and the path of the reservation this
+     * driver is expected to request. Nothing outside this DriverAgent is
+     * modified so the decide pass may run concurrently for all DriverAgents.
+     *
+     * @param ac the current state of the simulation.
+     */
+    public void decide(AgentCity ac) {
+        this.ac = ac;
+        // Current Vehicle position and velocity;
+        updateState(ac);
+        decidedSafeMerge = ac.LANE_POLICY && !inIntersection
+            && safeMerge(vehicle.meetsHovMin()
+                         ? getDirection().onLeft() : getDirection().onRight());
+        planDestination();
+        if (!plannedRoute) planReservation();
+        decided = true;
+    }
+
+    /** Looks up or builds the ReservationTemplate of the request act is
+     * expected to make if it keeps its route, so commit only checks the
+     * schedule. The template is used only if commit asks for the same key.
+     */
+    private void planReservation() {
+        plannedTemplate = null;
+        if (hasReservation()) return;
+        Waypoint[] planned = waypoints;
+        if (inIntersection) {
+            planned = getDepartureWaypoints(plannedDepartWaypoints,
+                                            plannedDepartTurnWaypoints);
+        } else if (!getLocation().equals(nextApproachLeg)
+                   && getStepsToCell(nextApproachLeg) != 1) {
+            return;
+        }
+        // act requests at full desired speed
+        long key = getTemplateKey(planned, maxSpeed);
+        if (key < 0) return;
+        IntersectionAgent controller = ac.getController(nextIntersection);
+        ReservationTemplate template = controller.getReservationTemplate(key);
+        plannedCached = template != null;
+        if (template == null) {
+            template = new ReservationTemplate(
+                getReservationPath(planned, maxSpeed));
+            controller.prepareTemplate(template);
+        }
+        plannedKey = key;
+        plannedController = controller;
+        plannedTemplate = template;
+    }
+
+    /** Runs the rest of this step using the results of
+     * {@link #decide(AgentCity)}. The random draw of the route choice,
+     * reservation requests and the safe speed, which earlier commits may
+     * change, are done here.
+     *
+     * @param ac the current state of the simulation.
+     */
+    public void commit(AgentCity ac) {
+        this.ac = ac;
+        act();
+        decided = false;
+        plannedRoute = false;
+        plannedTemplate = null;
+    }
+
+    private boolean mergeIsSafe(Direction dir) {
+        return decided ? decidedSafeMerge : safeMerge(dir);
+    }
+
     public void step(final SimState state) {
         ac = (AgentCity)state;
 
         // Current Vehicle position and velocity;
         updateState(ac);
+        act();
+    }
 
+    private void act() {
+        Int2D location = getLocation();
+        Direction direction = getDirection();
         // get a new destination if needed
         if (nextIntersection == null
             || nextDirective == Driver.Directive.MERGE_LEFT
@@ -952,9 +1217,8 @@ public class DriverAgent implements Steppable, Driver {
 
         // get a new destination if needed
         if (atNextLeg) {
-            nextIntersection.cancelReservation(vehicle);
-            vehicle.hasReservation = false;
-            hasReservation = false;
+            ac.getController(nextIntersection).cancelReservation(vehicle);
+            vehicle.setHasReservation(false);
             updateDestination();
         }
 
@@ -966,12 +1230,12 @@ public class DriverAgent implements Steppable, Driver {
         if (ac.LANE_POLICY) {
             if (!inIntersection && !nearIntersection) {
                 if (vehicle.meetsHovMin()) {
-                    if (safeMerge(direction.onLeft())) {
+                    if (mergeIsSafe(direction.onLeft())) {
                         //System.out.println("MERGING_LEFT");
                         nextDirective = Driver.Directive.MERGE_LEFT;
                         desiredSpeed = 1;
                     }
-                } else if (safeMerge(direction.onRight())) {
+                } else if (mergeIsSafe(direction.onRight())) {
                     //System.out.println("MERGING_RIGHT");
                     //System.out.print(this);
                     //System.out.print(this.vehicle.toString());
@@ -995,10 +1259,9 @@ public class DriverAgent implements Steppable, Driver {
             }
         }
 
-        if (hasReservation && maxSafeSpeed == 0 && !inIntersection) {
-            nextIntersection.cancelReservation(vehicle);
-            hasReservation = false;
-            vehicle.hasReservation = false;
+        if (hasReservation() && maxSafeSpeed == 0 && !inIntersection) {
+            ac.getController(nextIntersection).cancelReservation(vehicle);
+            vehicle.setHasReservation(false);
             if (inIntersection) updateReservation();
         }
 
@@ -1023,5 +1286,8 @@ public class DriverAgent implements Steppable, Driver {
                 desiredSpeed = maxSafeSpeed;
             }
         }
+
+        // publish the command for the next move of the Vehicle
+        vehicle.setCommand(nextDirective, desiredSpeed);
     }
 }
@@ -5,8 +5,14 @@
 package sim.app.agentcity;
 import sim.util.*;
 import sim.engine.*;
-import java.util.Arrays;
+import sim.field.grid.*;
 
+/**
+ * Fixed geometry of one intersection of a {@link RoadNetwork}: its cells
+ * and its approach and departure legs. An Intersection is not changed after
+ * it is made, so one may be shared by every AgentCity run on the same
+ * network. The per-run reservation state is in its {@link IntersectionAgent}.
+ */
 public class Intersection {
 
     // Required for serialization
@@ -23,31 +29,53 @@ public class Intersection {
     public final int maxY;
 
     // Variables
-    private IntersectionAgent controller;
     private Int2D[] approachLegs;
     private Int2D[] departureLegs;
+    // Departure legs by Direction
+    private Int2D[][] departureLegsToward;
+    private Int2D[][] departureLegsExcept;
+    private final Int2D origin;
 
     // Accessors
     public Int2D[] getDepartureLegs() { return departureLegs; }
     public Int2D[] getApproachLegs() { return approachLegs; }
     public int getNumApproachLegs(AgentCity ac, Direction direction) {
+        return getNumApproachLegs(ac.roadGrid, direction);
+    }
+    public int getNumApproachLegs(IntGrid2D roadGrid, Direction direction) {
         Int2D cell;
         int num = 0;
         for (int i = 0; i < approachLegs.length; i++) {
             cell = approachLegs[i];
-            if (ac.roadGrid.get(cell.x, cell.y) == direction.toInt()) num++;
+            if (roadGrid.get(cell.x, cell.y) == direction.toInt()) num++;
         }
         return num;
     }
-    public void setController(IntersectionAgent controller) {
-        this.controller = controller;
-    }
-    public IntersectionAgent getController() { return controller; }
     public int getNumCells() {
         return (maxX - minX + 1) * (maxY - minY + 1);
     }
 
-    public Int2D getOrigin() { return new Int2D(minX, minY); }
+    public Int2D getOrigin() { return origin; }
+
+    /** Gets the Direction along the x axis toward another Intersection or
+     * null if they are aligned.
+     */
+    public Direction getXDirectionTo(Intersection other) {
+        int xOffset = other.minX - this.minX;
+        if (xOffset < 0) return Direction.WEST;
+        if (xOffset > 0) return Direction.EAST;
+        return null;
+    }
+
+    /** Gets the Direction along the y axis toward another Intersection or
+     * null if they are aligned.
+     */
+    public Direction getYDirectionTo(Intersection other) {
+        int yOffset = other.minY - this.minY;
+        if (yOffset < 0) return Direction.NORTH;
+        if (yOffset > 0) return Direction.SOUTH;
+        return null;
+    }
 
     public Direction[] getDirectionsTo(Intersection other) {
         Direction[] directions = new Direction[2];
@@ -66,25 +94,22 @@ public class Intersection {
         return directions;
     }
 
-    public boolean legBlocked(Int2D leg) {
-        return controller.legBlocked(leg);
-    }
-
-    public boolean requestReservation(Vehicle vehicle, long time, Int2D[][] path) {
-        return controller.requestReservation(vehicle, time, path);
-    }
-    public boolean cancelReservation(Vehicle vehicle) {
-        return controller.cancelReservation(vehicle);
-    }
-
     /** Constructor */
     public Intersection(int id, int minX, int maxX, int minY, int maxY, AgentCity ac) {
+        this(id, minX, maxX, minY, maxY, ac.roadGrid);
+    }
+
+    /** Constructor with legs found on the provided road grid */
+    public Intersection(int id, int minX, int maxX, int minY, int maxY,
+                        IntGrid2D roadGrid) {
         idNum = id;
         this.minX = minX;
         this.maxX = maxX;
         this.minY = minY;
         this.maxY = maxY;
-        setLegs(ac);
+        origin = new Int2D(minX, minY);
+        setLegs(roadGrid);
+        buildDepartureLegTables(roadGrid);
     }
 
     /** Constructor */
@@ -94,6 +119,7 @@ public class Intersection {
         this.maxX = maxX;
         this.minY = minY;
         this.maxY = maxY;
+        origin = new Int2D(minX, minY);
     }
 
     public boolean inIntersection(int x, int y) {
@@ -106,7 +132,17 @@ public class Intersection {
         return inIntersection(cell.x, cell.y);
     }
 
-    private void setLegs(AgentCity ac) {
+    /** Gets the index of the cell at (x, y) among the cells of this
+     * Intersection, numbered by column, or -1 if it is not in this
+     * Intersection.
+     */
+    public int getCellIndex(int x, int y) {
+        if (!inIntersection(x, y)) return -1;
+        return (x - minX) * (maxY - minY + 1) + y - minY;
+    }
+
+    private void setLegs(IntGrid2D roadGrid) {
+        int gridHeight = roadGrid.getHeight();
         int width = maxX - minX + 1;
         int height = maxY - minY + 1;
         Int2D[] tmpDep = new Int2D[2 * width + 2 * height];
@@ -115,22 +151,22 @@ public class Intersection {
         // look around intersection for approach and departure legs
         if (minY - 1 >= 0) {
             for (int x = minX; x <= maxX; x++) {
-                if (ac.roadGrid.field[x][minY - 1]
+                if (roadGrid.field[x][minY - 1]
                         == Direction.SOUTH.toInt()) {
                     tmpApp[index] = new Int2D(x, minY - 1);
-                } else if (ac.roadGrid.field[x][minY - 1]
+                } else if (roadGrid.field[x][minY - 1]
                         == Direction.NORTH.toInt()) {
                     tmpDep[index] = new Int2D(x, minY - 1);
                 }
                 index++;
             }
         }
-        if (maxY + 1 < ac.gridHeight) {
+        if (maxY + 1 < gridHeight) {
             for (int x = minX; x <= maxX; x++) {
-                if (ac.roadGrid.field[x][maxY + 1]
+                if (roadGrid.field[x][maxY + 1]
                         == Direction.NORTH.toInt()) {
                     tmpApp[index] = new Int2D(x, maxY + 1);
-                } else if (ac.roadGrid.field[x][maxY + 1]
+                } else if (roadGrid.field[x][maxY + 1]
                         == Direction.SOUTH.toInt()) {
                     tmpDep[index] = new Int2D(x, maxY + 1);
                 }
@@ -139,22 +175,22 @@ public class Intersection {
         }
         if (minX - 1 >= 0) {
             for (int y = minY; y <= maxY; y++) {
-                if (ac.roadGrid.field[minX - 1][y]
+                if (roadGrid.field[minX - 1][y]
                         == Direction.EAST.toInt()) {
                     tmpApp[index] = new Int2D(minX - 1, y);
-                } else if (ac.roadGrid.field[minX - 1][y]
+                } else if (roadGrid.field[minX - 1][y]
                         == Direction.WEST.toInt()) {
                     tmpDep[index] = new Int2D(minX - 1, y);
                 }
                 index++;
             }
         }
-        if (maxX + 1 < ac.gridHeight) {
+        if (maxX + 1 < gridHeight) {
             for (int y = minY; y <= maxY; y++) {
-                if (ac.roadGrid.field[maxX + 1][y]
+                if (roadGrid.field[maxX + 1][y]
                         == Direction.WEST.toInt()) {
                     tmpApp[index] = new Int2D(maxX + 1, y);
-                } else if (ac.roadGrid.field[maxX + 1][y]
+                } else if (roadGrid.field[maxX + 1][y]
                         == Direction.EAST.toInt()) {
                     tmpDep[index] = new Int2D(maxX + 1, y);
                 }
@@ -189,66 +225,69 @@ public class Intersection {
         }
     }
 
-    public Int2D[] getDepartureLegsByDirection(AgentCity ac, Direction dir) {
-        int numLegs = 0; // number of relevant departure legs
-        Int2D[] legs; // array to return
-        // Count relevant departure legs
-        for (int i = 0; i < departureLegs.length; i++) {
-            if (ac.roadGrid.get(departureLegs[i].x, departureLegs[i].y)
-                == dir.toInt()) {
-                numLegs++;
+    /** Fills the tables of departure legs by Direction from roadGrid,
+     * which does not change after the Intersection is made.
+     */
+    private void buildDepartureLegTables(IntGrid2D roadGrid) {
+        int numDirs = Direction.values().length;
+        Int2D[][] toward = new Int2D[numDirs][];
+        Int2D[][] except = new Int2D[numDirs][];
+        for (Direction dir : Direction.values()) {
+            int numToward = 0;
+            int numExcept = 0;
+            for (int i = 0; i < departureLegs.length; i++) {
+                int legDir = roadGrid.get(departureLegs[i].x,
+                                          departureLegs[i].y);
+                if (legDir == dir.toInt()) numToward++;
+                if (legDir != dir.opposite().toInt()) numExcept++;
             }
-        }
-        // Fill new array with relevant departure legs
-        legs = new Int2D[numLegs];
-        int nextIndex = 0;
-        for (int i = 0; i < departureLegs.length; i++) {
-            if (ac.roadGrid.get(departureLegs[i].x, departureLegs[i].y)
-                == dir.toInt()) {
-                legs[nextIndex] = departureLegs[i];
-                nextIndex++;
+            toward[dir.toInt()] = new Int2D[numToward];
+            except[dir.toInt()] = new Int2D[numExcept];
+            numToward = 0;
+            numExcept = 0;
+            for (int i = 0; i < departureLegs.length; i++) {
+                int legDir = roadGrid.get(departureLegs[i].x,
+                                          departureLegs[i].y);
+                if (legDir == dir.toInt()) {
+                    toward[dir.toInt()][numToward] = departureLegs[i];
+                    numToward++;
+                }
+                if (legDir != dir.opposite().toInt()) {
+                    except[dir.toInt()][numExcept] = departureLegs[i];
+                    numExcept++;
+                }
             }
         }
-        return legs;
+        departureLegsExcept = except;
+        departureLegsToward = toward;
     }
 
-    // Get all departure legs execpt Direction dir
+    /** Gets the departure legs headed in Direction dir. The returned array
+     * is shared and must not be modified.
+     */
+    public Int2D[] getDepartureLegsByDirection(AgentCity ac, Direction dir) {
+        return departureLegsToward[dir.toInt()];
+    }
+
+    /** Gets all departure legs except those headed opposite Direction dir.
+     * The returned array is shared and must not be modified.
+     */
     public Int2D[] getDepartureLegs(AgentCity ac, Direction dir) {
-        int numLegs = 0; // number of relevant departure legs
-        Int2D[] legs; // array to return
-        // Count relevant departure legs
-        for (int i = 0; i < departureLegs.length; i++) {
-            if (ac.roadGrid.get(departureLegs[i].x, departureLegs[i].y)
-                    != dir.opposite().toInt()) {
-                numLegs++;
-            }
-        }
-        // Fill new array with relevant departure legs
-        legs = new Int2D[numLegs];
-        int nextIndex = 0;
-        for (int i = 0; i < departureLegs.length; i++) {
-            if (ac.roadGrid.get(departureLegs[i].x, departureLegs[i].y)
-                    != dir.opposite().toInt()) {
-                legs[nextIndex] = departureLegs[i];
-                nextIndex++;
-            }
-        }
-        return legs;
+        return departureLegsExcept[dir.toInt()];
     }
 
     public Int2D getDepartureLeg(AgentCity ac, Direction dir,
                                    Direction laneDir) {
         Int2D[] departureLegs = getDepartureLegsByDirection(ac, dir);
-        int[] departureInt = new int[departureLegs.length];
         int nextDepartureIdx = 0;
         int xOffset = laneDir.getXOffset();
         int yOffset = laneDir.getYOffset();
-        for (int i = 0; i < departureLegs.length; i++) {
-            departureInt[i] =
-                departureLegs[i].x * xOffset + departureLegs[i].y * yOffset;
-        }
-        for (int j = 1; j < departureInt.length; j++) {
-            if (departureInt[j] > departureInt[nextDepartureIdx]) {
+        int best = departureLegs[0].x * xOffset + departureLegs[0].y * yOffset;
+        int value;
+        for (int j = 1; j < departureLegs.length; j++) {
+            value = departureLegs[j].x * xOffset + departureLegs[j].y * yOffset;
+            if (value > best) {
+                best = value;
                 nextDepartureIdx = j;
             }
         }
@@ -6,6 +6,7 @@ package sim.app.agentcity;
 import sim.util.*;
 import sim.engine.*;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
 /** IntersectionAgent objects control traffic for a specific, contiguous
  * Intersection in the grid.
@@ -36,11 +37,29 @@ public class IntersectionAgent implements Steppable {
     private AgentCity ac; // state
     private Int2D[][] cells;
     private Int2D[] approachLegs;
-    private Vehicle[][][] schedule;
+    private ReservationTable schedule;
     private Bag vehicles;
+    /** Bits indexed by Vehicle ID number marking the members of vehicles. */
+    private long[] members = new long[1];
     private boolean acceptingReservations;
     private boolean passengerPriority;
     private long step;
+    // Time slots are trimmed lazily: trims for steps after trimmedStep up to
+    // dueStep have not been applied to the schedule yet.
+    private long trimmedStep = -1;
+    private long dueStep = -1;
+    private boolean dormant = false;
+    // Set when a Vehicle enters, leaves or moves in the Intersection or a
+    // reservation is cancelled, cleared by validating the schedule
+    private boolean dirty = true;
+    // Scratch footprint of the path being requested
+    private long[] footprint = new long[0];
+    // Cache of ReservationTemplates by key, open addressing
+    private long[] templateKeys = emptyKeys(16);
+    private ReservationTemplate[] templates = new ReservationTemplate[16];
+    private int numTemplates = 0;
+    // Persons waiting here for a Vehicle in order of arrival
+    private Bag waiting = new Bag();
 
     // Accessors
     public void setPriority(boolean priority) { passengerPriority = priority; }
@@ -48,6 +67,49 @@ public class IntersectionAgent implements Steppable {
 
     public Bag getVehicles() { return vehicles; }
 
+    /** Gets the number of Persons waiting here for a Vehicle. */
+    public int getNumWaiting() { return waiting.numObjs; }
+
+    /** Adds a Person to the end of the queue waiting here. */
+    void addWaiting(Person person) { waiting.add(person); }
+
+    /** Boards Persons waiting here onto the provided Vehicle, in order of
+     * arrival, until it is full. Persons it will not take keep their place
+     * in the queue. Each boarded Person becomes a traveler of the provided
+     * AgentCity.
+     *
+     * @return the number of Persons boarded.
+     */
+    int boardWaiting(AgentCity ac, Vehicle vehicle) {
+        long steps = ac.schedule.getSteps();
+        Person person;
+        int kept = 0;
+        int i = 0;
+        for (; i < waiting.numObjs
+                 && vehicle.getNumPassengers() < vehicle.passengerCap; i++) {
+            person = (Person)waiting.objs[i];
+            if (person.boardWaiting(vehicle, steps)) {
+                ac.addTraveler(person);
+            } else {
+                waiting.objs[kept++] = person;
+            }
+        }
+        int boarded = i - kept;
+        if (boarded > 0) {
+            // close the gap left by the boarded Persons
+            System.arraycopy(waiting.objs, i, waiting.objs, kept,
+                             waiting.numObjs - i);
+            for (int j = waiting.numObjs - boarded; j < waiting.numObjs; j++) {
+                waiting.objs[j] = null;
+            }
+            waiting.numObjs -= boarded;
+        }
+        return boarded;
+    }
+
+    /** True if this IntersectionAgent is idle and not being stepped. */
+    public boolean isDormant() { return dormant; }
+
     /** Gets the Intersection object controlled by this IntersectionAgent. */
     public Intersection getIntersection() { return intersection; }
 
@@ -64,7 +126,7 @@ public class IntersectionAgent implements Steppable {
         scheduleSize = width + height;
         vehicles = new Bag((width + 2) * (height + 2));
         approachLegs = intersection.getApproachLegs();
-        schedule = new Vehicle[scheduleSize][width][height];
+        schedule = new ReservationTable(scheduleSize, width * height);
         cells = new Int2D[width][height];
         for (int i = 0; i < width; i++) {
             for (int j = 0; j < height; j++) {
@@ -72,7 +134,6 @@ public class IntersectionAgent implements Steppable {
                                         intersection.minY + j);
             }
         }
-        intersection.setController(this);
         clearSchedule();
     }
 
@@ -83,8 +144,21 @@ public class IntersectionAgent implements Steppable {
      * This number should be unique but this is not enforced.
      */
     public IntersectionAgent(int id, Intersection intersection) {
+        this(id, intersection, ScenarioConfig.DEFAULT.reservationPriority);
+    }
+
+    /** Creates and IntersectionAgent object with the provided ID number,
+     * associated Intersection object and reservation priority policy.
+     *
+     * @param id the ID number of this IntersectionAgent.
+     * This number should be unique but this is not enforced.
+     * @param priority whether Vehicles meeting the HOV minimum may take
+     * reservations from others.
+     */
+    public IntersectionAgent(int id, Intersection intersection,
+                             boolean priority) {
         this.idNum = id;
-        setPriority(ac.RESERVATION_PRIORITY);
+        setPriority(priority);
         setIntersection(intersection);
     }
 
@@ -94,15 +168,214 @@ public class IntersectionAgent implements Steppable {
      */
     public boolean requestReservation(Vehicle vehicle, long time,
                                       Int2D[][] path) {
+        wake();
+        applyTrims();
         // check path against schedule
-        return addVehicleToSchedule(vehicle, time, path);
+        footprint = getFootprint(path, footprint);
+        return addVehicleToSchedule(vehicle, time, path, footprint);
+    }
+
+    /** Considers a request for a cached movement from an approaching Vehicle
+     * object and returns whether or not the the request is approved
+     */
+    public boolean requestReservation(Vehicle vehicle, long time,
+                                      ReservationTemplate template) {
+        wake();
+        applyTrims();
+        if (template.footprint == null) {
+            template.footprint = getFootprint(template.path, null);
+        }
+        return addVehicleToSchedule(vehicle, time, template.path,
+                                    template.footprint);
+    }
+
+    /** Fills in the footprint of a ReservationTemplate not yet cached.
+     * This only reads the IntersectionAgent, so DriverAgents may call it
+     * concurrently from the decide pass.
+     */
+    void prepareTemplate(ReservationTemplate template) {
+        if (template.footprint == null) {
+            template.footprint = getFootprint(template.path, null);
+        }
+    }
+
+    /** Gets the cached ReservationTemplate with the provided non-negative
+     * key or null.
+     */
+    public ReservationTemplate getReservationTemplate(long key) {
+        int mask = templateKeys.length - 1;
+        for (int i = hash(key) & mask; templateKeys[i] != -1;
+             i = (i + 1) & mask) {
+            if (templateKeys[i] == key) return templates[i];
+        }
+        return null;
+    }
+
+    /** Passes each array and ReservationTemplate this IntersectionAgent
+     * keeps from step to step to the provided action: the template cache,
+     * the schedule, the schedule Bag, the member bits, the scratch footprint
+     * and the queue. Vehicles and Persons are not included.
+     */
+    public void forEachRetained(Consumer<Object> action) {
+        action.accept(templateKeys);
+        action.accept(templates);
+        ReservationTemplate template;
+        for (int i = 0; i < templates.length; i++) {
+            template = templates[i];
+            if (template == null) continue;
+            action.accept(template);
+            action.accept(template.path);
+            for (int j = 0; j < template.path.length; j++) {
+                action.accept(template.path[j]);
+            }
+            if (template.footprint != null) action.accept(template.footprint);
+        }
+        schedule.forEachRetained(action);
+        action.accept(vehicles.objs);
+        action.accept(members);
+        action.accept(footprint);
+        action.accept(waiting.objs);
+    }
+
+    /** Caches a ReservationTemplate with the provided non-negative key. */
+    public void putReservationTemplate(long key,
+                                       ReservationTemplate template) {
+        if (2 * (numTemplates + 1) > templateKeys.length) {
+            long[] oldKeys = templateKeys;
+            ReservationTemplate[] oldTemplates = templates;
+            templateKeys = emptyKeys(2 * oldKeys.length);
+            templates = new ReservationTemplate[2 * oldKeys.length];
+            numTemplates = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != -1) {
+                    putReservationTemplate(oldKeys[i], oldTemplates[i]);
+                }
+            }
+        }
+        int mask = templateKeys.length - 1;
+        int i = hash(key) & mask;
+        while (templateKeys[i] != -1 && templateKeys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (templateKeys[i] == -1) numTemplates++;
+        templateKeys[i] = key;
+        templates[i] = template;
+    }
+
+    private static long[] emptyKeys(int n) {
+        long[] keys = new long[n];
+        Arrays.fill(keys, -1);
+        return keys;
+    }
+
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int)(key ^ (key >>> 32));
     }
 
     public boolean cancelReservation(Vehicle vehicle) {
+        applyTrims();
         return removeVehicleFromSchedule(vehicle);
     }
 
+    /** True if no Vehicle is in the Intersection or on the schedule Bag,
+     * in which case the schedule is valid without being checked.
+     */
+    private boolean isIdle() {
+        return vehicles.numObjs == 0
+            && ac.intersectionOccupants[intersection.idNum] == 0;
+    }
+
+    /** Marks the schedule to be validated on the next step. */
+    void markDirty() { dirty = true; }
+
+    /** True if a Vehicle on the schedule Bag is due on its reserved path,
+     * so it deviates from its reservation if it is not where the path
+     * places it on this step.
+     */
+    private boolean isReservationActive(long steps) {
+        Vehicle vehicle;
+        DriverAgent driver;
+        int timeIndex;
+        for (int i = 0; i < vehicles.numObjs; i++) {
+            vehicle = (Vehicle)vehicles.objs[i];
+            driver = (DriverAgent)vehicle.getDriver();
+            timeIndex = (int)(steps - driver.reservationTime);
+            if (timeIndex >= 0 && timeIndex < driver.reservationPath.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Resumes stepping this IntersectionAgent if it is dormant. A woken
+     * IntersectionAgent does its next step in full, which is on the
+     * current step if its turn in the intersection phase has not yet come.
+     */
+    void wake() {
+        if (!dormant) return;
+        applyTrims();
+        dormant = false;
+    }
+
+    /** Skips the steps of this IntersectionAgent until it is woken by a
+     * reservation request or a Vehicle entering the Intersection. It stays
+     * on the schedule, so the order in which agents are stepped and the
+     * random numbers drawn to shuffle them do not change.
+     */
+    private void sleep() {
+        dormant = true;
+    }
+
+    /** Clears the time slots of every trim that is due but not applied. */
+    private void applyTrims() {
+        if (dormant) {
+            // a dormant IntersectionAgent is trimmed on every step
+            dueStep = ac.schedule.getSteps();
+        }
+        long from = Math.max(trimmedStep + 1, dueStep - scheduleSize + 1);
+        for (long s = from; s <= dueStep; s++) {
+            schedule.clearSlot((int)((scheduleSize + s - 1) % scheduleSize));
+        }
+        trimmedStep = dueStep;
+    }
+
+    private boolean isMember(Vehicle vehicle) {
+        int w = vehicle.idNum >> 6;
+        return w < members.length
+            && (members[w] & (1L << vehicle.idNum)) != 0;
+    }
+
+    private void setMember(Vehicle vehicle, boolean member) {
+        int w = vehicle.idNum >> 6;
+        if (w >= members.length) {
+            if (!member) return;
+            members = Arrays.copyOf(members, Math.max(w + 1,
+                                                      2 * members.length));
+        }
+        if (member) {
+            members[w] |= 1L << vehicle.idNum;
+        } else {
+            members[w] &= ~(1L << vehicle.idNum);
+        }
+    }
+
+    /** Adds a Vehicle to vehicles. */
+    private void addMember(Vehicle vehicle) {
+        vehicles.add(vehicle);
+        setMember(vehicle, true);
+    }
+
+    /** Removes all Vehicles from vehicles. */
+    private void clearMembers() {
+        for (int i = 0; i < vehicles.numObjs; i++) {
+            setMember((Vehicle)vehicles.objs[i], false);
+        }
+        vehicles.clear();
+    }
+
     public String toString(int option) {
+        applyTrims();
         int digits = 4;
         StringBuilder s = new StringBuilder();
         s.append(String.format("IntersectionAgent[%d]", idNum));
@@ -119,9 +392,10 @@ public class IntersectionAgent implements Steppable {
                 }
                 for (int j = 0; j < scheduleSize; j++) {
                     for (int k = 0; k < width; k++) {
-                        if (schedule[j][k][i] != null) {
+                        Vehicle owner = schedule.getOwner(j, k * height + i);
+                        if (owner != null) {
                             s.append(String.format("%"+digits+"d",
-                                                   schedule[j][k][i].idNum));
+                                                   owner.idNum));
                         } else {
                             s.append(String.format("%"+digits+"d", -1));
                         }
@@ -151,26 +425,36 @@ public class IntersectionAgent implements Steppable {
      */
     private boolean addVehicleToSchedule(Vehicle vehicle,
                                          long time,
-                                         Int2D[][] path) {
-        int x;
-        int y;
+                                         Int2D[][] path,
+                                         long[] footprint) {
+        int cell;
         int timeIndex;
         Vehicle otherVehicle = null;
         DriverAgent otherDriver = null;
         // check if accepting reservations
-        if (!acceptingReservations && !vehicles.contains(vehicle)) return false;
+        if (!acceptingReservations && !isMember(vehicle)) return false;
+        // Take the whole path if no cell of it is held
+        if (schedule.isFree(time, footprint, path.length)) {
+            schedule.setAll(time, footprint, path.length, vehicle);
+            if (!isMember(vehicle)) {
+                addMember(vehicle);
+            }
+            return true;
+        }
+        // Otherwise only passenger priority may clear the path
+        if (!passengerPriority || height * width <= 4) return false;
         // Check if Vehicles desired path is free
         for (int i = 0; i < path.length; i++) {
             timeIndex = (int)((time + i) % scheduleSize);
             for (int j = 0; j < path[i].length; j++) {
                 if (path[i][j] != null
                     && intersection.inIntersection(path[i][j])) {
-                    x = path[i][j].x - intersection.minX;
-                    y = path[i][j].y - intersection.minY;
-                    if (schedule[timeIndex][x][y] != null) {
+                    cell = getCellIndex(path[i][j]);
+                    if (schedule.isHeld(timeIndex, cell)) {
                         if (passengerPriority && height * width > 4) {
                             if (vehicle.meetsHovMin()) {
-                                otherVehicle = schedule[timeIndex][x][y];
+                                otherVehicle = schedule.getOwner(timeIndex,
+                                                                 cell);
                                 otherDriver = (DriverAgent)otherVehicle.getDriver();
                                 otherDriver.updateState(ac);
                                 if (otherVehicle.meetsHovMin()
@@ -193,26 +477,24 @@ public class IntersectionAgent implements Steppable {
             for (int j = 0; j < path[i].length; j++) {
                 if (path[i][j] != null
                     && intersection.inIntersection(path[i][j])) {
-                    x = path[i][j].x - intersection.minX;
-                    y = path[i][j].y - intersection.minY;
+                    cell = getCellIndex(path[i][j]);
                     if (passengerPriority
-                        && schedule[timeIndex][x][y] != null
+                        && schedule.isHeld(timeIndex, cell)
                         && height * width > 4) {
-                        otherVehicle = schedule[timeIndex][x][y];
+                        otherVehicle = schedule.getOwner(timeIndex, cell);
                         otherDriver = (DriverAgent)otherVehicle.getDriver();
                         removeVehicleFromSchedule(otherVehicle);
-                        otherVehicle.hasReservation = false;
-                        otherDriver.hasReservation = false;
+                        otherVehicle.setHasReservation(false);
                         otherDriver.checkReservation(ac);
                         //System.out.print(vehicle.toString());
                         //System.out.print(otherVehicle.toString());
                     }
-                    schedule[timeIndex][x][y] = vehicle;
+                    schedule.set(timeIndex, cell, vehicle);
                 }
             }
         }
-        if (!vehicles.contains(vehicle)) {
-        	vehicles.add(vehicle);
+        if (!isMember(vehicle)) {
+            addMember(vehicle);
         }
         if (intersection.idNum == intIdNum) {
             System.out.println();
@@ -222,17 +504,43 @@ public class IntersectionAgent implements Steppable {
     }
 
     boolean removeVehicleFromSchedule(Vehicle vehicle) {
-        boolean removed = vehicles.remove(vehicle);
-        for (int i = 0; i < scheduleSize; i++) {
-            for (int j = 0; j < width; j++) {
-                for (int k = 0; k < height; k++) {
-                    if (schedule[i][j][k] == vehicle) {
-                        schedule[i][j][k] = null;
-                    }
+        boolean removed = false;
+        dirty = true;
+        if (isMember(vehicle)) {
+            removed = vehicles.remove(vehicle);
+            setMember(vehicle, false);
+        }
+        schedule.remove(vehicle);
+        return removed;
+    }
+
+    /** Gets the index in the schedule of a cell of the Intersection. */
+    private int getCellIndex(Int2D cell) {
+        return intersection.getCellIndex(cell.x, cell.y);
+    }
+
+    /** Packs the cells of the Intersection covered on each step of a path
+     * into a footprint, reusing the provided array if it is large enough.
+     */
+    private long[] getFootprint(Int2D[][] path, long[] footprint) {
+        int words = schedule.words;
+        int n = path.length * words;
+        if (footprint == null || footprint.length < n) {
+            footprint = new long[n];
+        } else {
+            Arrays.fill(footprint, 0, n, 0);
+        }
+        int cell;
+        for (int i = 0; i < path.length; i++) {
+            for (int j = 0; j < path[i].length; j++) {
+                if (path[i][j] == null) continue;
+                cell = getCellIndex(path[i][j]);
+                if (cell >= 0) {
+                    footprint[i * words + (cell >> 6)] |= 1L << cell;
                 }
             }
         }
-        return removed;
+        return footprint;
     }
 
     /** Checks the schedule against a tally of vehicles actually present in the
@@ -246,7 +554,7 @@ public class IntersectionAgent implements Steppable {
         int x;
         int y;
         Vehicle vehicle;
-        Bag bag;
+        Vehicle occupant;
         long steps = ac.schedule.getSteps();
         int step = (int)(steps % scheduleSize);
         // Loop over Vehicle with reservations and check if they are on
@@ -259,7 +567,7 @@ public class IntersectionAgent implements Steppable {
             boolean cannotLeave =
                 (timeIndex >= 0
                  && timeIndex < driver.reservationPath.length
-                 && !vehicle.location.equals(driver.reservationPath[timeIndex][0]));
+                 && !vehicle.getLocation().equals(driver.reservationPath[timeIndex][0]));
             if (cannotLeave) {
                 return false;
             }
@@ -270,10 +578,10 @@ public class IntersectionAgent implements Steppable {
             for (int j = 0; j < height; j++) {
                 x = cells[i][j].x;
                 y = cells[i][j].y;
-                vehicle = schedule[step][i][j];
-                bag = ac.agentGrid.getObjectsAtLocation(x, y);
-                if (bag != null) {
-                    if (vehicle != (Vehicle)bag.objs[0]) {
+                vehicle = schedule.getOwner(step, i * height + j);
+                occupant = ac.getVehicleAt(x, y);
+                if (occupant != null) {
+                    if (vehicle != occupant) {
                         return false;
                     }
                 }
@@ -286,18 +594,17 @@ public class IntersectionAgent implements Steppable {
         int x;
         int y;
         Vehicle vehicle;
-        Bag bag;
         long steps = ac.schedule.getSteps();
-        vehicles.clear();
+        clearMembers();
         for (int i = 0; i < width; i++) {
             for (int j = 0; j < height; j++) {
                 x = cells[i][j].x;
                 y = cells[i][j].y;
-                bag = ac.agentGrid.getObjectsAtLocation(x, y);
-                if (bag == null) continue;
-                vehicle = (Vehicle)bag.objs[0];
-                schedule[(int)(steps % scheduleSize)][i][j] = vehicle;
-                vehicles.add(vehicle);
+                vehicle = ac.getVehicleAt(x, y);
+                if (vehicle == null) continue;
+                schedule.set((int)(steps % scheduleSize), i * height + j,
+                             vehicle);
+                addMember(vehicle);
             }
         }
         vehicles.shuffle(ac.random);
@@ -338,13 +645,12 @@ public class IntersectionAgent implements Steppable {
     public boolean legBlocked(Int2D leg) {
         int x = leg.x;
         int y = leg.y;
-        Bag b;
+        Vehicle vehicle;
         int numCells = 5;
         Direction dir = Direction.byInt(ac.roadGrid.get(x, y));
-            for (int i = 0; i < numCells; i++) {
-                b = ac.agentGrid.getObjectsAtLocation(x, y);
-            if (b != null) {
-                Vehicle vehicle = (Vehicle)b.objs[0];
+        for (int i = 0; i < numCells; i++) {
+            vehicle = ac.getVehicleAt(x, y);
+            if (vehicle != null) {
                 if (vehicle.getSpeed() == 0) {
                     return true;
                 }
@@ -358,45 +664,57 @@ public class IntersectionAgent implements Steppable {
     private void clearSchedule() {
         Vehicle v;
         // clear every cell of the schedule
-        for (int i = 0; i < scheduleSize; i++) {
-            for (int j = 0; j < width; j++) {
-                for (int k = 0; k < height; k++) {
-                    schedule[i][j][k] = null;
-                }
-            }
-        }
+        schedule.clear();
+        trimmedStep = dueStep;
         // cancel all reservations
         for (int i = 0; i < vehicles.numObjs; i++) {
             v = (Vehicle)vehicles.objs[i];
-            v.hasReservation = false;
-            ((DriverAgent)v.getDriver()).hasReservation = false;
+            v.setHasReservation(false);
         }
     }
 
     private void trimSchedule(AgentCity ac) {
         Vehicle v;
-        long steps = ac.schedule.getSteps();
-        int step = (int)((scheduleSize + steps - 1) % scheduleSize);
-        for (int j = 0; j < width; j++) {
-            for (int k = 0; k < height; k++) {
-                schedule[step][j][k] = null;
-            }
-        }
+        dueStep = ac.schedule.getSteps();
+        applyTrims();
         // remove vehicles without reservations from Bag
         for (int i = 0; i < vehicles.numObjs; i++) {
             v = (Vehicle)vehicles.objs[i];
-            if (!v.hasReservation) {
+            if (!v.hasReservation()) {
                 vehicles.removeNondestructively(i);
+                setMember(v, false);
             }
-            vehicles.shrink(0);
         }
     }
 
     public void step(final SimState state) {
         ac = (AgentCity)state;
         step = ac.schedule.getSteps();
-        trimSchedule(ac);
-        checkSchedule();
+        // trims of a dormant IntersectionAgent are applied when it wakes
+        if (dormant) return;
+        if (isIdle()) {
+            // nothing to validate so just note the trim for this step
+            dueStep = step;
+            acceptingReservations = true;
+            dirty = false;
+            if (ac.config.dormantIntersections) {
+                sleep();
+            }
+        } else {
+            trimSchedule(ac);
+            // a Vehicle standing in the Intersection or due on its path may
+            // deviate from its reservation without moving
+            if (ac.intersectionOccupants[intersection.idNum] > 0
+                || isReservationActive(step)) {
+                dirty = true;
+            }
+            if (dirty) {
+                checkSchedule();
+                dirty = false;
+            } else {
+                acceptingReservations = true;
+            }
+        }
         if (intersection.idNum == intIdNum) {
             System.out.println();
             System.out.printf("Step %d, schedule %d/%d\n",
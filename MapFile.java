@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import sim.field.grid.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * Compact binary file format for a {@link RoadNetwork}.
+ *
+ * <p> A map file is a header of six big-endian ints: the magic number, the
+ * format version, the grid width and height, the number of Intersections
+ * and the number of bytes of cell data that follow. The cell data holds,
+ * for every cell in column-major order (x then y, as IntGrid2D.field is
+ * indexed):
+ * <ul>
+ * <li> one byte: the road Direction number,
+ * <li> one byte: flags for block (1), parking (2) and walkway (4),
+ * <li> one int: the Intersection label, 0 if none.
+ * </ul>
+ *
+ * <p> Files are read through a memory map so a map already in the page
+ * cache is copied straight into the grids without parsing. The Intersections
+ * and road topology are then built from the grids. The cells labeled with
+ * each Intersection from one to the number of Intersections must fill a
+ * rectangle.
+ *
+ * <pre>
+ * java sim.app.agentcity.MapFile grids out.map
+ * </pre>
+ * writes the generated test grid of the provided size.
+ */
+public class MapFile {
+
+    // Utility
+    /** "ACMP" */
+    public static final int MAGIC = 0x41434d50;
+    public static final int VERSION = 1;
+    private static final int HEADER_BYTES = 6 * 4;
+    private static final int CELL_BYTES = 1 + 1 + 4;
+    private static final int BLOCK = 1;
+    private static final int PARKING = 2;
+    private static final int WALKWAY = 4;
+
+    /** Reads the RoadNetwork in the map file at the provided path. */
+    public static RoadNetwork read(Path path) throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(path,
+                                                    StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                              channel.size());
+        }
+        return read(buf, path.toString());
+    }
+
+    static RoadNetwork read(ByteBuffer buf, String name) throws IOException {
+        if (buf.remaining() < HEADER_BYTES || buf.getInt() != MAGIC) {
+            throw new IOException(name + " is not a map file");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException(String.format(
+                "%s has map format version %d, expected %d",
+                name, version, VERSION));
+        }
+        int width = buf.getInt();
+        int height = buf.getInt();
+        int numIntersections = buf.getInt();
+        long numBytes = buf.getInt() & 0xffffffffL;
+        if (width < 1 || height < 1 || numIntersections < 0
+            || numBytes != (long)width * height * CELL_BYTES
+            || numBytes > buf.remaining()) {
+            throw new IOException(name + " has a bad header");
+        }
+
+        IntGrid2D roadGrid = new IntGrid2D(width, height, 0);
+        IntGrid2D intersectionGrid = new IntGrid2D(width, height, 0);
+        IntGrid2D blockGrid = new IntGrid2D(width, height, 0);
+        IntGrid2D parkingGrid = new IntGrid2D(width, height, 0);
+        IntGrid2D walkwayGrid = new IntGrid2D(width, height, 0);
+        int road;
+        int flags;
+        int label;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                road = buf.get();
+                flags = buf.get();
+                label = buf.getInt();
+                if (road < Direction.NONE.toInt()
+                    || road > Direction.ALL.toInt()
+                    || label < 0 || label > numIntersections
+                    || (label != 0) != (road == Direction.ALL.toInt())) {
+                    throw new IOException(String.format(
+                        "%s has a bad cell at [%d, %d]", name, x, y));
+                }
+                roadGrid.field[x][y] = road;
+                intersectionGrid.field[x][y] = label;
+                blockGrid.field[x][y] = flags & BLOCK;
+                parkingGrid.field[x][y] = (flags & PARKING) >> 1;
+                walkwayGrid.field[x][y] = (flags & WALKWAY) >> 2;
+            }
+        }
+        try {
+            return new RoadNetwork(numIntersections, roadGrid,
+                                   intersectionGrid, blockGrid, parkingGrid,
+                                   walkwayGrid);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(name + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** Writes the provided RoadNetwork to a map file at the provided path. */
+    public static void write(RoadNetwork network, Path path)
+        throws IOException {
+        int width = network.gridWidth;
+        int height = network.gridHeight;
+        long numBytes = (long)width * height * CELL_BYTES;
+        if (numBytes > 0xffffffffL - HEADER_BYTES) {
+            throw new IOException("Network is too large for a map file");
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                 new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(network.numIntersections);
+            out.writeInt((int)numBytes);
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    int flags = 0;
+                    if (network.blockGrid.field[x][y] != 0) flags |= BLOCK;
+                    if (network.parkingGrid.field[x][y] != 0) flags |= PARKING;
+                    if (network.walkwayGrid.field[x][y] != 0) flags |= WALKWAY;
+                    out.writeByte(network.roadGrid.field[x][y]);
+                    out.writeByte(flags);
+                    out.writeInt(network.intersectionGrid.field[x][y]);
+                }
+            }
+        }
+    }
+
+    /** Writes the generated test grid of the provided size. */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: MapFile grids out.map");
+            System.exit(2);
+        }
+        int grids = Integer.parseInt(args[0]);
+        write(RoadNetwork.makeTestGrid(grids), Paths.get(args[1]));
+    }
+}
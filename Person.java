@@ -14,7 +14,7 @@ public class Person implements Steppable, VehicleClient {
     long step;
 
     // Properties
-    public final int idNum;
+    public int idNum;
 
     // Variables
     private AgentCity ac;
@@ -31,6 +31,10 @@ public class Person implements Steppable, VehicleClient {
     private long firstStep = -1;
     private int cellsTraveled = 0;
     private int cellsPlanned = 0;
+    // Step at which this Person began waiting in a queue, or -1
+    private long waitStep = -1;
+    // Index of this Person in the travelers of AgentCity, or -1
+    int travelerIndex = -1;
 
     // Accessors
     public int getStepsTraveling() { return stepsTraveling; }
@@ -50,16 +54,10 @@ public class Person implements Steppable, VehicleClient {
     public Person(int id,
                   Intersection origin,
                   Intersection destination, Vehicle vehicle) {
-        idNum = id;
-        this.origin = origin;
-        this.destination = destination;
+        init(id, origin, destination);
         if (vehicle != null) {
             this.boardVehicle(vehicle);
         }
-        if (origin != null) {
-            cellsPlanned = Math.abs(destination.minX - origin.minX) +
-                Math.abs(destination.minY - origin.minY);
-        }
     }
 
     /** Constructor */
@@ -68,6 +66,34 @@ public class Person implements Steppable, VehicleClient {
         this(id, origin, destination, null);
     }
 
+    /** Makes this Person a new trip, clearing everything left from any
+     * earlier trip so that a pooled Person may be reused.
+     */
+    void init(int id, Intersection origin, Intersection destination) {
+        idNum = id;
+        this.origin = origin;
+        this.destination = destination;
+        stopper = null;
+        step = 0;
+        ac = null;
+        vehicle = null;
+        inVehicle = false;
+        atDestination = false;
+        stepsAlive = 0;
+        stepsWaiting = 0;
+        stepsTraveling = 0;
+        lastStep = -1;
+        firstStep = -1;
+        cellsTraveled = 0;
+        cellsPlanned = 0;
+        waitStep = -1;
+        travelerIndex = -1;
+        if (origin != null) {
+            cellsPlanned = Math.abs(destination.minX - origin.minX) +
+                Math.abs(destination.minY - origin.minY);
+        }
+    }
+
     @Override
     public String toString() {
         return new StringBuilder()
@@ -118,6 +144,37 @@ public class Person implements Steppable, VehicleClient {
         }
     }
 
+    /** Notes that this Person waits in the queue of its origin from the
+     * provided step on without being stepped. A Person moved from one queue
+     * to another keeps waiting from the step it first began.
+     */
+    void beginWaiting(long step) {
+        if (waitStep < 0) waitStep = step;
+        if (firstStep < 0) firstStep = step + 1;
+    }
+
+    /** Counts the steps waited without being stepped up to the provided
+     * step, as when this Person leaves a queue to be stepped or boards.
+     */
+    void endWaiting(long step) {
+        if (waitStep >= 0) {
+            stepsAlive += step - waitStep;
+            stepsWaiting += step - waitStep;
+            waitStep = -1;
+        }
+    }
+
+    /** Boards the provided Vehicle at the provided step if it will take
+     * this Person, counting the steps waited since it was made or queued.
+     */
+    boolean boardWaiting(Vehicle v, long step) {
+        if (!boardVehicle(v)) {
+            return false;
+        }
+        endWaiting(step);
+        return true;
+    }
+
     public void step(final SimState state) {
         // get Simulation state
         ac = (AgentCity)state;
@@ -126,7 +183,7 @@ public class Person implements Steppable, VehicleClient {
 
         if (!inVehicle) {
             stepsWaiting++;
-            Bag vehicles = origin.getController().getVehicles();
+            Bag vehicles = ac.getController(origin).getVehicles();
             Vehicle v;
             for (int i = 0; i < vehicles.numObjs; i++) {
                 v = (Vehicle)vehicles.objs[i];
@@ -138,16 +195,24 @@ public class Person implements Steppable, VehicleClient {
             stepsTraveling++;
             cellsTraveled += vehicle.getSpeed();
             if (atDestination()) {
+                Vehicle v = vehicle;
                 if (exitVehicle()) {
                     lastStep = ac.schedule.getSteps();
                     ac.reportTrip(this);
+                    if (ac.dispatcher != null) {
+                        // an emptied Vehicle is free to dispatch again
+                        ac.dispatcher.addVehicle(v);
+                    }
                 }
-                if (ac.removeTraveler(this)) {
+                if (ac.removeTraveler(this) && stopper != null) {
                     this.stopper.stop();
                 }
                 if (origin != null) {
-                    //if (ac.CONSOLE_OUT) { System.out.print(this); }
-                    //if (ac.FILE_OUT) { ac.fileout.print(this); }
+                    //if (ac.config.consoleOut) { System.out.print(this); }
+                    //if (ac.config.fileOut) { ac.fileout.print(this); }
+                }
+                if (!inVehicle) {
+                    ac.releasePerson(this);
                 }
             }
         }
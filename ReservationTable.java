@@ -0,0 +1,245 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Reservation schedule of one {@link IntersectionAgent}.
+ *
+ * <p> The schedule is a ring of time slots, each holding one bit per cell of
+ * the Intersection packed into long words and the Vehicle holding each cell.
+ * Every Vehicle on the schedule also has a list of the entries, a time slot
+ * and cell pair, it was given so its reservation can be cancelled without
+ * scanning the whole schedule. An entry is left in the list when its cell is
+ * cleared or given to another Vehicle and is skipped on cancel.
+ *
+ * <p> A path through the Intersection can be tested as a footprint: for
+ * each step of the path, the words of cell bits it covers. A footprint is
+ * free if it shares no bit with the slots it would occupy, which is the
+ * union of every reservation granted for those steps.
+ */
+public class ReservationTable {
+
+    // Properties
+    public final int numSlots;
+    public final int numCells;
+    /** Number of long words of cell bits in one time slot. */
+    public final int words;
+
+    // Variables
+    /** Occupancy bits of each time slot in words consecutive longs. */
+    private final long[] bits;
+    /** Vehicle holding each (slot, cell) entry. */
+    private final Vehicle[] owners;
+    // Vehicles on the schedule and the entries each was given
+    private Vehicle[] holders;
+    private int[][] entries;
+    private int[] numEntries;
+    private int numHolders = 0;
+
+    /** Creates an empty schedule.
+     *
+     * @param numSlots the number of time slots in the ring.
+     * @param numCells the number of cells in the Intersection.
+     */
+    public ReservationTable(int numSlots, int numCells) {
+        this.numSlots = numSlots;
+        this.numCells = numCells;
+        words = (numCells + 63) >> 6;
+        bits = new long[numSlots * words];
+        owners = new Vehicle[numSlots * numCells];
+        holders = new Vehicle[numCells];
+        entries = new int[numCells][];
+        numEntries = new int[numCells];
+    }
+
+    /** Passes each array this schedule keeps to the provided action. */
+    public void forEachRetained(Consumer<Object> action) {
+        action.accept(bits);
+        action.accept(owners);
+        action.accept(holders);
+        action.accept(entries);
+        action.accept(numEntries);
+        for (int h = 0; h < entries.length; h++) {
+            if (entries[h] != null) action.accept(entries[h]);
+        }
+    }
+
+    /** True if the cell is held by some Vehicle in the time slot. */
+    public boolean isHeld(int slot, int cell) {
+        return (bits[slot * words + (cell >> 6)] & (1L << cell)) != 0;
+    }
+
+    /** Gets the Vehicle holding the cell in the time slot or null. */
+    public Vehicle getOwner(int slot, int cell) {
+        return owners[slot * numCells + cell];
+    }
+
+    /** True if no cell of the footprint is held in the time slots starting
+     * at the provided time.
+     *
+     * @param time the step of the first row of the footprint.
+     * @param footprint length rows of words cell bits.
+     * @param length the number of steps in the footprint.
+     */
+    public boolean isFree(long time, long[] footprint, int length) {
+        for (int i = 0; i < length; i++) {
+            int base = (int)((time + i) % numSlots) * words;
+            for (int w = 0; w < words; w++) {
+                if ((bits[base + w] & footprint[i * words + w]) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Gives every cell of a free footprint to the provided Vehicle. */
+    public void setAll(long time, long[] footprint, int length,
+                       Vehicle vehicle) {
+        for (int i = 0; i < length; i++) {
+            int slot = (int)((time + i) % numSlots);
+            for (int w = 0; w < words; w++) {
+                long mask = footprint[i * words + w];
+                while (mask != 0) {
+                    set(slot, (w << 6) + Long.numberOfTrailingZeros(mask),
+                        vehicle);
+                    mask &= mask - 1;
+                }
+            }
+        }
+    }
+
+    /** Gives the cell in the time slot to the provided Vehicle. */
+    public void set(int slot, int cell, Vehicle vehicle) {
+        int entry = slot * numCells + cell;
+        owners[entry] = vehicle;
+        bits[slot * words + (cell >> 6)] |= 1L << cell;
+        addEntry(vehicle, entry);
+    }
+
+    /** Removes the provided Vehicle from every cell it holds. */
+    public void remove(Vehicle vehicle) {
+        int h = indexOf(vehicle);
+        if (h < 0) return;
+        int[] list = entries[h];
+        for (int k = 0; k < numEntries[h]; k++) {
+            clearEntry(list[k], vehicle);
+        }
+        removeHolder(h);
+    }
+
+    /** Clears every cell of one time slot. */
+    public void clearSlot(int slot) {
+        int base = slot * numCells;
+        for (int c = 0; c < numCells; c++) {
+            owners[base + c] = null;
+        }
+        for (int w = 0; w < words; w++) {
+            bits[slot * words + w] = 0;
+        }
+    }
+
+    /** Clears every cell of every time slot. */
+    public void clear() {
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = null;
+        }
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = 0;
+        }
+        for (int h = 0; h < numHolders; h++) {
+            holders[h] = null;
+            numEntries[h] = 0;
+        }
+        numHolders = 0;
+    }
+
+    private void clearEntry(int entry, Vehicle vehicle) {
+        if (owners[entry] != vehicle) return;
+        owners[entry] = null;
+        int slot = entry / numCells;
+        int cell = entry - slot * numCells;
+        bits[slot * words + (cell >> 6)] &= ~(1L << cell);
+    }
+
+    private int indexOf(Vehicle vehicle) {
+        for (int h = 0; h < numHolders; h++) {
+            if (holders[h] == vehicle) return h;
+        }
+        return -1;
+    }
+
+    private void addEntry(Vehicle vehicle, int entry) {
+        int h = indexOf(vehicle);
+        if (h < 0) {
+            if (numHolders == holders.length) {
+                dropStaleHolders();
+            }
+            if (numHolders == holders.length) {
+                growHolders();
+            }
+            h = numHolders;
+            numHolders++;
+            holders[h] = vehicle;
+            numEntries[h] = 0;
+            if (entries[h] == null) {
+                entries[h] = new int[numSlots];
+            }
+        }
+        int[] list = entries[h];
+        int n = numEntries[h];
+        if (n == list.length) {
+            // drop entries since cleared or given away before growing
+            int kept = 0;
+            for (int k = 0; k < n; k++) {
+                if (owners[list[k]] == vehicle) {
+                    list[kept] = list[k];
+                    kept++;
+                }
+            }
+            n = kept;
+            if (n == list.length) {
+                list = Arrays.copyOf(list, 2 * n);
+                entries[h] = list;
+            }
+        }
+        list[n] = entry;
+        numEntries[h] = n + 1;
+    }
+
+    private void removeHolder(int h) {
+        int last = numHolders - 1;
+        int[] list = entries[h];
+        holders[h] = holders[last];
+        entries[h] = entries[last];
+        numEntries[h] = numEntries[last];
+        holders[last] = null;
+        entries[last] = list;
+        numEntries[last] = 0;
+        numHolders = last;
+    }
+
+    /** Removes Vehicles that no longer hold any cell. */
+    private void dropStaleHolders() {
+        for (int h = numHolders - 1; h >= 0; h--) {
+            boolean holding = false;
+            for (int k = 0; k < numEntries[h] && !holding; k++) {
+                holding = owners[entries[h][k]] == holders[h];
+            }
+            if (!holding) {
+                removeHolder(h);
+            }
+        }
+    }
+
+    private void growHolders() {
+        int n = 2 * holders.length;
+        holders = Arrays.copyOf(holders, n);
+        entries = Arrays.copyOf(entries, n);
+        numEntries = Arrays.copyOf(numEntries, n);
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import sim.util.*;
+
+/**
+ * A reservation path through an {@link Intersection} shared by every
+ * Vehicle making the same movement from the same state.
+ *
+ * <p> The path holds the cells covered on each step from the reservation
+ * time on, so one template serves any reservation time. Neither the path
+ * nor the footprint may be changed once the template is cached.
+ */
+public class ReservationTemplate {
+
+    // Properties
+    /** Cells covered on each step of the movement. */
+    public final Int2D[][] path;
+    /** Footprint of the path in the ReservationTable of the Intersection,
+     * filled in by its IntersectionAgent on first use.
+     */
+    long[] footprint;
+
+    public ReservationTemplate(Int2D[][] path) {
+        this.path = path;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import sim.field.grid.*;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * The static road network of an {@link AgentCity}: its road, intersection,
+ * block, parking and walkway grids, its Intersections with their legs and
+ * the {@link RoadTopology} of its road cells.
+ *
+ * <p> Nothing in a RoadNetwork is changed after it is built, so one network
+ * may be shared by reference by any number of concurrent runs. The grids are
+ * MASON fields so they may be portrayed, but must be treated as read-only.
+ * Test grid networks are built once per size and cached. Other networks
+ * may be read from a {@link MapFile}.
+ */
+public class RoadNetwork {
+
+    // Utility
+    /** Width in cells of one block of the test grid, including its roads. */
+    private static final int BLOCK_SIZE = 38;
+    /** Road cells outside intersections in one block of the test grid. */
+    public static final int SPAWN_CELLS_PER_BLOCK = countSpawnCellsPerBlock();
+    private static final ConcurrentHashMap<Integer, RoadNetwork> testGrids =
+        new ConcurrentHashMap<Integer, RoadNetwork>();
+
+    // Properties
+    public final int gridWidth;
+    public final int gridHeight;
+    public final int numIntersections;
+    public final IntGrid2D roadGrid;
+    public final IntGrid2D intersectionGrid;
+    public final IntGrid2D blockGrid;
+    public final IntGrid2D parkingGrid;
+    public final IntGrid2D walkwayGrid;
+    /** Intersections indexed by ID number; index 0 is unused. */
+    public final Intersection[] intersections;
+    public final RoadTopology roadTopology;
+    // Road cells outside intersections by cell ID number
+    private final int[] spawnCells;
+
+    /** Builds the Intersections and topology of the provided grids, which
+     * must not be changed afterward.
+     */
+    RoadNetwork(int numIntersections, IntGrid2D roadGrid,
+                IntGrid2D intersectionGrid, IntGrid2D blockGrid,
+                IntGrid2D parkingGrid, IntGrid2D walkwayGrid) {
+        this.gridWidth = roadGrid.getWidth();
+        this.gridHeight = roadGrid.getHeight();
+        this.numIntersections = numIntersections;
+        this.roadGrid = roadGrid;
+        this.intersectionGrid = intersectionGrid;
+        this.blockGrid = blockGrid;
+        this.parkingGrid = parkingGrid;
+        this.walkwayGrid = walkwayGrid;
+        intersections = makeIntersections();
+        roadTopology = new RoadTopology(roadGrid.field,
+                                        intersectionGrid.field);
+        spawnCells = makeSpawnCells();
+    }
+
+    /** Gets the shared test grid network of grids by grids blocks, building
+     * it on first use.
+     */
+    public static RoadNetwork getTestGrid(int grids) {
+        RoadNetwork network = testGrids.get(grids);
+        if (network == null) {
+            network = makeTestGrid(grids);
+            RoadNetwork other = testGrids.putIfAbsent(grids, network);
+            if (other != null) network = other;
+        }
+        return network;
+    }
+
+    /** Builds a new test grid network of grids by grids blocks.
+     *
+     * <p> Every cell of the test grid is a function of its coordinates
+     * alone, so the grids are filled in parallel by bands of columns.
+     * Intersection cells are then joined with union-find and labeled in
+     * column-major order of their first cell, which gives the same ID
+     * numbers as labeling them one cell at a time.
+     */
+    public static RoadNetwork makeTestGrid(int grids) {
+        int n = grids;
+        final int gridHeight = n * BLOCK_SIZE + 2;
+        final int gridWidth = gridHeight;
+
+        IntGrid2D roadGrid =
+            new IntGrid2D(gridWidth, gridHeight, Direction.NONE.toInt());
+        IntGrid2D intersectionGrid = new IntGrid2D(gridWidth, gridHeight, 0);
+        IntGrid2D blockGrid = new IntGrid2D(gridWidth, gridHeight, 1);
+        IntGrid2D walkwayGrid = new IntGrid2D(gridWidth, gridHeight, 0);
+        final int[][] road = roadGrid.field;
+        final int[][] block = blockGrid.field;
+        final int[][] walkway = walkwayGrid.field;
+
+        // Make some roads and blocks
+        IntStream.range(0, gridWidth).parallel().forEach(x -> {
+                int xDir = getLaneDirection(x, Direction.SOUTH, Direction.NORTH);
+                for (int y = 0; y < gridHeight; y++) {
+                    int yDir = getLaneDirection(y, Direction.WEST,
+                                                Direction.EAST);
+                    if (xDir != 0 && yDir != 0) {
+                        road[x][y] = Direction.ALL.toInt();
+                    } else if (xDir != 0) {
+                        road[x][y] = xDir;
+                    } else if (yDir != 0) {
+                        road[x][y] = yDir;
+                    }
+                    if (xDir != 0 || yDir != 0) {
+                        block[x][y] = 0;
+                    } else if (isLaneBeside(x, y)) {
+                        // sidewalk around the edge of each block
+                        walkway[x][y] = 1;
+                    }
+                }
+            });
+
+        int numIntersections = labelIntersections(road, intersectionGrid.field);
+        return new RoadNetwork(numIntersections, roadGrid, intersectionGrid,
+                               blockGrid,
+                               new IntGrid2D(gridWidth, gridHeight, 0),
+                               walkwayGrid);
+    }
+
+    /** Counts the cells of one block of the test grid where exactly one
+     * of the row and column is a lane.
+     */
+    private static int countSpawnCellsPerBlock() {
+        int lanes = 0;
+        for (int i = 2; i < BLOCK_SIZE + 2; i++) {
+            if (getLaneDirection(i, Direction.SOUTH, Direction.NORTH) != 0) {
+                lanes++;
+            }
+        }
+        return 2 * lanes * (BLOCK_SIZE - lanes);
+    }
+
+    /** Gets the Direction number of a lane of the test grid at the provided
+     * column or row, or 0 if there is none.
+     */
+    private static int getLaneDirection(int i, Direction first,
+                                        Direction second) {
+        int m = (i - 2) % BLOCK_SIZE;
+        if (i == 0 || m == 16 || m == 17 || m == 36) return first.toInt();
+        if (i == 1 || m == 18 || m == 19 || m == 37) return second.toInt();
+        return 0;
+    }
+
+    /** Is there a test grid lane next to the provided cell? */
+    private static boolean isLaneBeside(int x, int y) {
+        return getLaneDirection(x - 1, Direction.SOUTH, Direction.NORTH) != 0
+            || getLaneDirection(x + 1, Direction.SOUTH, Direction.NORTH) != 0
+            || getLaneDirection(y - 1, Direction.WEST, Direction.EAST) != 0
+            || getLaneDirection(y + 1, Direction.WEST, Direction.EAST) != 0;
+    }
+
+    /** Labels each group of touching intersection cells, diagonals
+     * included, with an ID number counting from one in column-major order
+     * and returns the number of groups.
+     */
+    private static int labelIntersections(int[][] road, int[][] inter) {
+        int width = road.length;
+        int height = road[0].length;
+        int[] parent = new int[width * height];
+        int all = Direction.ALL.toInt();
+        int cell;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                if (road[x][y] != all) continue;
+                cell = x * height + y;
+                parent[cell] = cell;
+                // join with the neighbors already visited
+                if (y > 0 && road[x][y - 1] == all) {
+                    union(parent, cell, cell - 1);
+                }
+                if (x > 0) {
+                    for (int dy = -1; dy <= 1; dy++) {
+                        if (y + dy >= 0 && y + dy < height
+                            && road[x - 1][y + dy] == all) {
+                            union(parent, cell, cell - height + dy);
+                        }
+                    }
+                }
+            }
+        }
+        int[] labels = new int[width * height];
+        int num = 0;
+        int root;
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                if (road[x][y] != all) continue;
+                root = find(parent, x * height + y);
+                if (labels[root] == 0) {
+                    num++;
+                    labels[root] = num;
+                }
+                inter[x][y] = labels[root];
+            }
+        }
+        return num;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        // keep the earlier cell as the root
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parent[rootA] = rootB;
+        }
+    }
+
+    /** Makes an Intersection for the bounding box of each label of the
+     * intersection grid.
+     */
+    /** Builds the Intersections from their labeled cells. Every label from
+     * one to numIntersections must fill a rectangle of cells.
+     */
+    private Intersection[] makeIntersections() {
+        int numCells[] = new int[numIntersections + 1];
+        int maxXs[] = new int[numIntersections + 1];
+        int minXs[] = new int[numIntersections + 1];
+        int maxYs[] = new int[numIntersections + 1];
+        int minYs[] = new int[numIntersections + 1];
+        Arrays.fill(minXs, gridWidth);
+        Arrays.fill(minYs, gridHeight);
+        int inter;
+        for (int x = 0; x < gridWidth; x++) {
+            for (int y = 0; y < gridHeight; y++) {
+                inter = intersectionGrid.field[x][y];
+                if (inter != 0) {
+                    numCells[inter]++;
+                    maxXs[inter] = (x > maxXs[inter]) ? x : maxXs[inter];
+                    minXs[inter] = (x < minXs[inter]) ? x : minXs[inter];
+                    maxYs[inter] = (y > maxYs[inter]) ? y : maxYs[inter];
+                    minYs[inter] = (y < minYs[inter]) ? y : minYs[inter];
+                }
+            }
+        }
+        Intersection[] intersections = new Intersection[numIntersections + 1];
+        for (int i = 1; i < numIntersections + 1; i++) {
+            if (numCells[i] == 0) {
+                throw new IllegalArgumentException(
+                    "Intersection " + i + " has no cells");
+            }
+            if (numCells[i] != (long)(maxXs[i] - minXs[i] + 1)
+                * (maxYs[i] - minYs[i] + 1)) {
+                throw new IllegalArgumentException(
+                    "Intersection " + i + " does not fill a rectangle");
+            }
+            intersections[i] =
+                new Intersection(i, minXs[i], maxXs[i], minYs[i], maxYs[i],
+                                 roadGrid);
+        }
+        return intersections;
+    }
+
+    /** Gets the cell ID numbers of the road cells outside intersections,
+     * where Vehicles may be placed, in increasing order.
+     */
+    private int[] makeSpawnCells() {
+        int num = 0;
+        for (int x = 0; x < gridWidth; x++) {
+            for (int y = 0; y < gridHeight; y++) {
+                if (isSpawnCell(x, y)) num++;
+            }
+        }
+        int[] cells = new int[num];
+        num = 0;
+        for (int x = 0; x < gridWidth; x++) {
+            for (int y = 0; y < gridHeight; y++) {
+                if (isSpawnCell(x, y)) {
+                    cells[num] = x * gridHeight + y;
+                    num++;
+                }
+            }
+        }
+        return cells;
+    }
+
+    private boolean isSpawnCell(int x, int y) {
+        int road = roadGrid.field[x][y];
+        return road != Direction.NONE.toInt() && road != Direction.ALL.toInt();
+    }
+
+    /** Gets the number of cells where Vehicles may be placed. */
+    public int getNumSpawnCells() { return spawnCells.length; }
+
+    /** Gets a new copy of the cell ID numbers where Vehicles may be placed,
+     * in increasing order.
+     */
+    public int[] copySpawnCells() { return spawnCells.clone(); }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import sim.util.*;
+import java.util.Arrays;
+
+/**
+ * Precomputed topology of the road cells of an {@link AgentCity} grid.
+ *
+ * <p> Every road cell is given a compact road ID number. For each road ID,
+ * primitive arrays hold the cell, its direction, the next cell along the
+ * road, the adjacent lanes in the same direction, the next Intersection
+ * downstream and the approach leg of that Intersection with the distance to
+ * it. Intersection cells have no successor or approach leg and their next
+ * Intersection is the one they belong to.
+ *
+ * <p> The tables are built once after the road and intersection grids are
+ * made and are not changed afterward.
+ */
+public class RoadTopology {
+
+    // Utility
+    /** Value of any road ID field that does not apply. */
+    public static final int NONE = -1;
+
+    // Properties
+    public final int gridWidth;
+    public final int gridHeight;
+    public final int numRoadCells;
+
+    // Cell tables indexed by AgentCity.getCellId()
+    private final int[] roadIds;
+
+    // Road tables indexed by road ID number
+    private final int[] cells;
+    private final byte[] directions;
+    private final int[] successors;
+    private final int[] leftLanes;
+    private final int[] rightLanes;
+    private final int[] nextIntersections;
+    private final int[] approachLegs;
+    private final int[] approachDistances;
+    private final Int2D[] locations;
+
+    /** Builds the tables from the roadGrid and intersectionGrid of the
+     * provided state.
+     */
+    public RoadTopology(AgentCity ac) {
+        this(ac.roadGrid.field, ac.intersectionGrid.field);
+    }
+
+    /** Builds the tables from the provided road and intersection grids. */
+    public RoadTopology(int[][] road, int[][] inter) {
+        gridWidth = road.length;
+        gridHeight = road[0].length;
+
+        // number road cells
+        roadIds = new int[gridWidth * gridHeight];
+        Arrays.fill(roadIds, NONE);
+        int num = 0;
+        for (int x = 0; x < gridWidth; x++) {
+            for (int y = 0; y < gridHeight; y++) {
+                if (road[x][y] != Direction.NONE.toInt()) {
+                    roadIds[x * gridHeight + y] = num;
+                    num++;
+                }
+            }
+        }
+        numRoadCells = num;
+        cells = new int[num];
+        directions = new byte[num];
+        successors = new int[num];
+        leftLanes = new int[num];
+        rightLanes = new int[num];
+        nextIntersections = new int[num];
+        approachLegs = new int[num];
+        approachDistances = new int[num];
+        locations = new Int2D[num];
+
+        // local links
+        int r;
+        Direction dir;
+        for (int x = 0; x < gridWidth; x++) {
+            for (int y = 0; y < gridHeight; y++) {
+                r = roadIds[x * gridHeight + y];
+                if (r == NONE) continue;
+                cells[r] = x * gridHeight + y;
+                directions[r] = (byte)road[x][y];
+                locations[r] = new Int2D(x, y);
+                nextIntersections[r] = inter[x][y];
+                approachLegs[r] = NONE;
+                approachDistances[r] = NONE;
+                dir = Direction.byInt(road[x][y]);
+                if (dir == Direction.ALL) {
+                    successors[r] = NONE;
+                    leftLanes[r] = NONE;
+                    rightLanes[r] = NONE;
+                } else {
+                    successors[r] = getRoadId(x + dir.getXOffset(),
+                                              y + dir.getYOffset());
+                    leftLanes[r] = getLane(x, y, dir, dir.onLeft(), road);
+                    rightLanes[r] = getLane(x, y, dir, dir.onRight(), road);
+                }
+            }
+        }
+
+        // follow each lane to its intersection and fill in back to front
+        int[] path = new int[Math.max(gridWidth, gridHeight) + 1];
+        int len;
+        int next;
+        int leg;
+        int dist;
+        int intersection;
+        for (int i = 0; i < num; i++) {
+            if (directions[i] == Direction.ALL.toInt()
+                || nextIntersections[i] != 0) continue;
+            len = 0;
+            r = i;
+            next = successors[r];
+            // walk until the next cell is an intersection or already known
+            while (next != NONE
+                   && directions[next] != Direction.ALL.toInt()
+                   && nextIntersections[next] == 0
+                   && len < path.length - 1) {
+                path[len] = r;
+                len++;
+                r = next;
+                next = successors[r];
+            }
+            path[len] = r;
+            len++;
+            if (next == NONE) {
+                // lane leaves the grid without reaching an intersection
+                continue;
+            } else if (directions[next] == Direction.ALL.toInt()) {
+                leg = r;
+                dist = 0;
+                intersection = nextIntersections[next];
+            } else {
+                leg = approachLegs[next];
+                dist = approachDistances[next] + 1;
+                intersection = nextIntersections[next];
+            }
+            for (int j = len - 1; j >= 0; j--) {
+                approachLegs[path[j]] = leg;
+                approachDistances[path[j]] = dist;
+                nextIntersections[path[j]] = intersection;
+                dist++;
+            }
+        }
+    }
+
+    private int getLane(int x, int y, Direction dir, Direction side,
+                        int[][] road) {
+        int laneX = x + side.getXOffset();
+        int laneY = y + side.getYOffset();
+        if (!inBounds(laneX, laneY)) return NONE;
+        if (road[laneX][laneY] != dir.toInt()) return NONE;
+        return roadIds[laneX * gridHeight + laneY];
+    }
+
+    private boolean inBounds(int x, int y) {
+        return x >= 0 && x < gridWidth && y >= 0 && y < gridHeight;
+    }
+
+    // Accessors by grid location
+
+    /** Gets the road ID number of the cell at (x, y) or NONE if it is not a
+     * road cell or not on the grid.
+     */
+    public int getRoadId(int x, int y) {
+        if (!inBounds(x, y)) return NONE;
+        return roadIds[x * gridHeight + y];
+    }
+
+    /** Gets the road ID number of the provided cell ID or NONE. */
+    public int getRoadId(int cellId) { return roadIds[cellId]; }
+
+    /** Gets the ID number of the Intersection containing the provided cell
+     * ID or 0 if the cell is not in an Intersection.
+     */
+    public int getIntersectionId(int cellId) {
+        int r = roadIds[cellId];
+        if (r == NONE || directions[r] != Direction.ALL.toInt()) return 0;
+        return nextIntersections[r];
+    }
+
+    /** Gets the ID number of the next Intersection downstream of the cell at
+     * (x, y), or of the Intersection containing it. Returns 0 if there is
+     * none.
+     */
+    public int getNextIntersection(int x, int y) {
+        int r = getRoadId(x, y);
+        if (r == NONE) return 0;
+        return nextIntersections[r];
+    }
+
+    /** Gets the approach leg ahead of a Vehicle at (x, y) headed in the
+     * provided Direction, or null if the cell is not a road cell in that
+     * Direction with an Intersection ahead.
+     */
+    public Int2D getApproachLeg(int x, int y, Direction dir) {
+        int r = getRoadId(x, y);
+        if (r == NONE || directions[r] != dir.toInt()) return null;
+        int leg = approachLegs[r];
+        if (leg == NONE) return null;
+        return locations[leg];
+    }
+
+    // Accessors by road ID number
+
+    public int getCell(int r) { return cells[r]; }
+    public int getDirection(int r) { return directions[r]; }
+    public int getSuccessor(int r) { return successors[r]; }
+    public int getLeftLane(int r) { return leftLanes[r]; }
+    public int getRightLane(int r) { return rightLanes[r]; }
+    public int getNextIntersection(int r) { return nextIntersections[r]; }
+    public int getApproachLeg(int r) { return approachLegs[r]; }
+    public int getApproachDistance(int r) { return approachDistances[r]; }
+
+    /** Gets a shared Int2D for the cell with the provided road ID number. */
+    public Int2D getLocation(int r) { return locations[r]; }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Maximum safe speed of every {@link Vehicle} for the current step.
+ *
+ * <p> The safe speed of a Vehicle depends on the cells ahead of it and,
+ * through Vehicles holding reservations inside an Intersection, on the safe
+ * speed of its leaders. Each value is computed once and reused until a
+ * Vehicle moves or one of the reservations it was computed from changes. A
+ * sweep at the start of the driver phase fills the field for every Vehicle,
+ * resolving leaders before followers so no chain is walked twice.
+ *
+ * <p> The sweep may also run in parallel. Vehicles are then grouped by the
+ * Intersection ahead of their lane, or the one they are in, and each group
+ * is swept by one task, Vehicles in the Intersection first. A search only
+ * reuses the value of a leader in its own group, so no task reads a value
+ * another task is writing.
+ *
+ * <p> Values are identical to the recursive search DriverAgent used before,
+ * including its depth limit and its rule for a chain leading back to the
+ * Vehicle being checked.
+ */
+public class SafeSpeedField {
+
+    // Utility
+    /** Deepest chain of leaders followed before giving up. */
+    public static final int MAX_DEPTH = 16;
+    /** Most Vehicles one value may depend on and still be kept. */
+    private static final int MAX_DEPS = 8;
+    /** Number of Vehicles swept by one task before it stops splitting. */
+    private static final int GRAIN = 256;
+    /** Group of a search that may reuse any leader. */
+    private static final int ANY_GROUP = -1;
+    // Dependency states
+    private static final byte RESERVED = 1;
+    private static final byte NOT_RESERVED = 0;
+    /** Seen as an obstacle; only its position matters. */
+    private static final byte SEEN = 2;
+    private static final int[] X_OFFSETS = new int[10];
+    private static final int[] Y_OFFSETS = new int[10];
+    static {
+        for (Direction dir : Direction.values()) {
+            X_OFFSETS[dir.toInt()] = dir.getXOffset();
+            Y_OFFSETS[dir.toInt()] = dir.getYOffset();
+        }
+    }
+
+    // Properties
+    private final int gridWidth;
+    private final int gridHeight;
+    private final int[][] roadGrid;
+    private final int[] occupancy;
+    private final Vehicle[] vehicles;
+    private final VehicleState state;
+    private final RoadTopology topology;
+    private final int numGroups;
+
+    // Variables indexed by Vehicle ID number
+    private final long[] stamps;
+    private final byte[] values;
+    private final byte[] maxSpeeds;
+    private final byte[] reaches;
+    private final boolean[] cyclic;
+    private final boolean[] capped;
+    private final int[] numDeps;
+    // IDs of Vehicles met by the search and what was read from them
+    private final int[] depIds;
+    private final byte[] depStates;
+    // Group of each Vehicle in the last parallel sweep
+    private final int[] groups;
+
+    // Variables of the parallel sweep
+    // Vehicle IDs by group, group g from groupStarts[g] to groupStarts[g+1]
+    private final int[] groupStarts;
+    private final int[] groupMembers;
+
+    /** Creates an empty field for the Vehicles of the provided state. */
+    public SafeSpeedField(AgentCity ac) {
+        gridWidth = ac.gridWidth;
+        gridHeight = ac.gridHeight;
+        roadGrid = ac.roadGrid.field;
+        occupancy = ac.occupancy;
+        vehicles = ac.vehicles;
+        state = ac.vehicleState;
+        topology = ac.roadTopology;
+        // two groups per Intersection: Vehicles in it, then Vehicles ahead
+        numGroups = 2 * ac.intersections.length;
+        int n = vehicles.length;
+        stamps = new long[n];
+        values = new byte[n];
+        maxSpeeds = new byte[n];
+        reaches = new byte[n];
+        cyclic = new boolean[n];
+        capped = new boolean[n];
+        numDeps = new int[n];
+        depIds = new int[n * MAX_DEPS];
+        depStates = new byte[n * MAX_DEPS];
+        groups = new int[n];
+        groupStarts = new int[numGroups + 1];
+        groupMembers = new int[n];
+        Arrays.fill(stamps, -1);
+    }
+
+    /** Computes any missing or stale value for every Vehicle. */
+    public void update() {
+        for (int i = 0; i < vehicles.length; i++) {
+            get(i, vehicles[i].MAX_SPEED);
+        }
+    }
+
+    /** Computes any missing or stale value for every Vehicle on the provided
+     * pool. Values are the same as those of {@link #update()}.
+     */
+    public void update(ForkJoinPool pool) {
+        group();
+        pool.invoke(new UpdateTask(0, numGroups / 2));
+    }
+
+    /** Sorts the Vehicle IDs into groupMembers by group. */
+    private void group() {
+        Arrays.fill(groupStarts, 0);
+        for (int i = 0; i < vehicles.length; i++) {
+            int cell = state.getCell(vehicles[i].getSlot());
+            int r = topology.getRoadId(cell);
+            int g = 0;
+            if (r != RoadTopology.NONE) {
+                g = 2 * topology.getNextIntersection(r);
+                if (topology.getDirection(r) != Direction.ALL.toInt()) g++;
+            }
+            groups[i] = g;
+            groupStarts[g + 1]++;
+        }
+        for (int g = 0; g < numGroups; g++) {
+            groupStarts[g + 1] += groupStarts[g];
+        }
+        for (int i = vehicles.length - 1; i >= 0; i--) {
+            groupMembers[--groupStarts[groups[i] + 1]] = i;
+        }
+        // a task sweeps both groups of an Intersection, so searches may
+        // share leaders across them
+        for (int i = 0; i < vehicles.length; i++) {
+            groups[i] >>= 1;
+        }
+    }
+
+    private class UpdateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1;
+        // Intersection ID numbers swept by this task
+        private final int from;
+        private final int to;
+
+        UpdateTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            int start = groupStarts[2 * from];
+            int end = groupStarts[2 * to];
+            if (to - from == 1 || end - start <= GRAIN) {
+                for (int k = start; k < end; k++) {
+                    int id = groupMembers[k];
+                    SafeSpeedField.this.get(id, vehicles[id].MAX_SPEED,
+                                            groups[id]);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new UpdateTask(from, mid), new UpdateTask(mid, to));
+        }
+    }
+
+    /** Gets the maximum safe speed on the next step of the Vehicle with the
+     * provided ID number.
+     *
+     * @param id the ID number of the Vehicle.
+     * @param maxSpeed the maximum speed of its Driver.
+     */
+    public int get(int id, int maxSpeed) {
+        return get(id, maxSpeed, ANY_GROUP);
+    }
+
+    private int get(int id, int maxSpeed, int group) {
+        if (isValid(id, maxSpeed)) {
+            return values[id];
+        }
+        stamps[id] = -1;
+        cyclic[id] = false;
+        capped[id] = false;
+        reaches[id] = 0;
+        numDeps[id] = 0;
+        int slot = vehicles[id].getSlot();
+        int cell = state.getCell(slot);
+        int value = compute(id, cell / gridHeight, cell % gridHeight,
+                            state.getDirection(slot).toInt(), maxSpeed, 0,
+                            group);
+        values[id] = (byte)value;
+        maxSpeeds[id] = (byte)maxSpeed;
+        if (numDeps[id] <= MAX_DEPS) {
+            stamps[id] = state.getVersion();
+        }
+        return value;
+    }
+
+    private boolean isValid(int id, int maxSpeed) {
+        if (stamps[id] != state.getVersion() || maxSpeeds[id] != maxSpeed) {
+            return false;
+        }
+        int base = id * MAX_DEPS;
+        for (int k = 0; k < numDeps[id]; k++) {
+            byte dep = depStates[base + k];
+            if (dep != SEEN
+                && hasReservation(depIds[base + k]) != (dep == RESERVED)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean dependsOn(int id, int other) {
+        int base = id * MAX_DEPS;
+        for (int k = 0; k < numDeps[id]; k++) {
+            if (depIds[base + k] == other) return true;
+        }
+        return false;
+    }
+
+    private boolean hasReservation(int id) {
+        return state.getFlag(vehicles[id].getSlot(),
+                             VehicleState.HAS_RESERVATION);
+    }
+
+    private void addDep(int top, int id, byte dep) {
+        int k = numDeps[top];
+        if (k < MAX_DEPS) {
+            depIds[top * MAX_DEPS + k] = id;
+            depStates[top * MAX_DEPS + k] = dep;
+        }
+        numDeps[top] = k + 1;
+    }
+
+    /** Safe speed from (x, y) in the provided direction for the chain
+     * started by Vehicle top, which reuses leaders of the provided group.
+     */
+    private int compute(int top, int x, int y, int dir, int maxSpeed,
+                        int depth, int group) {
+        if (depth > MAX_DEPTH) {
+            capped[top] = true;
+            return 0;
+        }
+        if (depth > reaches[top]) {
+            reaches[top] = (byte)depth;
+        }
+
+        // for each cell ahead of vehicle, check for obstacles and boundaries.
+        for (int i = 0; i < maxSpeed; i++) {
+            int cx = x + (i + 1) * X_OFFSETS[dir];
+            int cy = y + (i + 1) * Y_OFFSETS[dir];
+            if (cx < 0 || cx >= gridWidth || cy < 0 || cy >= gridHeight) {
+                return i;
+            }
+            int road = roadGrid[cx][cy];
+            if (road == Direction.NONE.toInt()) { return i; }
+            int other = occupancy[cx * gridHeight + cy];
+            if (other < 0) continue;
+            // check for gridlock
+            if (other == top) {
+                cyclic[top] = true;
+                return 1;
+            }
+            // only a Vehicle with a reservation in an intersection may clear
+            if (road != Direction.ALL.toInt()) {
+                addDep(top, other, SEEN);
+                return i;
+            }
+            if (!hasReservation(other)) {
+                addDep(top, other, NOT_RESERVED);
+                return i;
+            }
+            addDep(top, other, RESERVED);
+            int otherSlot = vehicles[other].getSlot();
+            int otherDir = state.getDirection(otherSlot).toInt();
+            int otherSafeSpeed =
+                leader(top, other, cx, cy, otherDir, maxSpeed, depth + 1,
+                       group);
+            // check if other vehicle can move
+            if (otherSafeSpeed < 1) { return i; }
+            // check if other vehicle is traveling in the same direction
+            if (otherDir == dir) {
+                int otherSpeed = state.getSpeed(otherSlot);
+                // check if the other vehicle is slow
+                if (i + otherSpeed + 1 < maxSpeed) {
+                    return i + otherSpeed + 1;
+                }
+                // check if other vehicle will stop for an obstacle
+                if (i + otherSafeSpeed < maxSpeed) {
+                    return i + otherSafeSpeed;
+                }
+                // the path is clear up to maxSpeed
+                break;
+            }
+        }
+        return maxSpeed;
+    }
+
+    /** Safe speed of a leader in the chain of Vehicle top, reusing its own
+     * value when that value does not depend on where the chain started: its
+     * search never met top, never looped back and never hit the depth limit.
+     * In a parallel sweep the leader must also be in the group of the search.
+     */
+    private int leader(int top, int id, int x, int y, int dir, int maxSpeed,
+                       int depth, int group) {
+        if ((group == ANY_GROUP || groups[id] == group)
+            && !cyclic[id] && !capped[id] && depth + reaches[id] <= MAX_DEPTH
+            && isValid(id, maxSpeed) && !dependsOn(id, top)) {
+            int base = id * MAX_DEPS;
+            for (int k = 0; k < numDeps[id]; k++) {
+                addDep(top, depIds[base + k], depStates[base + k]);
+            }
+            if (depth + reaches[id] > reaches[top]) {
+                reaches[top] = (byte)(depth + reaches[id]);
+            }
+            return values[id];
+        }
+        return compute(top, x, y, dir, maxSpeed, depth, group);
+    }
+}
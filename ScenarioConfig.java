@@ -0,0 +1,209 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+
+/**
+ * Behavior switches of one {@link AgentCity} run.
+ *
+ * <p> A config is immutable so concurrent runs in one JVM may each use their
+ * own without recompiling. Make one with a {@link Builder}, starting from
+ * the defaults or from another config.
+ */
+public final class ScenarioConfig implements java.io.Serializable {
+
+    // Required for serialization
+    private static final long serialVersionUID = 1;
+
+    /** The settings AgentCity has always run with. */
+    public static final ScenarioConfig DEFAULT = new Builder().build();
+
+    // Properties
+    public final boolean smartTurns;
+    public final boolean avoidCongestion;
+    public final boolean reservationPriority;
+    public final boolean reservationPrioritySmall;
+    public final boolean passengerWarmStart;
+    public final double warmStartRate;
+    public final boolean consoleOut;
+    public final boolean fileOut;
+    public final int maxSpeed;
+    public final int reportInterval;
+    public final boolean batchedStepping;
+    public final boolean twoPhaseStepping;
+    public final boolean dormantIntersections;
+    public final int numThreads;
+    public final boolean shuffledPlacement;
+    public final boolean eventBoarding;
+    public final boolean demandEngine;
+    public final boolean dispatch;
+    public final int dispatchBatchSteps;
+
+    private ScenarioConfig(Builder b) {
+        smartTurns = b.smartTurns;
+        avoidCongestion = b.avoidCongestion;
+        reservationPriority = b.reservationPriority;
+        reservationPrioritySmall = b.reservationPrioritySmall;
+        passengerWarmStart = b.passengerWarmStart;
+        warmStartRate = b.warmStartRate;
+        consoleOut = b.consoleOut;
+        fileOut = b.fileOut;
+        maxSpeed = b.maxSpeed;
+        reportInterval = b.reportInterval;
+        batchedStepping = b.batchedStepping;
+        twoPhaseStepping = b.twoPhaseStepping;
+        dormantIntersections = b.dormantIntersections;
+        numThreads = b.numThreads;
+        shuffledPlacement = b.shuffledPlacement;
+        eventBoarding = b.eventBoarding;
+        demandEngine = b.demandEngine;
+        dispatch = b.dispatch;
+        dispatchBatchSteps = b.dispatchBatchSteps;
+    }
+
+    /** Gets a Builder starting from the settings of this config. */
+    public Builder toBuilder() { return new Builder(this); }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+            .append("ScenarioConfig: {")
+            .append("smartTurns: " + smartTurns + ", ")
+            .append("avoidCongestion: " + avoidCongestion + ", ")
+            .append("reservationPriority: " + reservationPriority + ", ")
+            .append("reservationPrioritySmall: " + reservationPrioritySmall + ", ")
+            .append("passengerWarmStart: " + passengerWarmStart + ", ")
+            .append("warmStartRate: " + warmStartRate + ", ")
+            .append("consoleOut: " + consoleOut + ", ")
+            .append("fileOut: " + fileOut + ", ")
+            .append("maxSpeed: " + maxSpeed + ", ")
+            .append("reportInterval: " + reportInterval + ", ")
+            .append("batchedStepping: " + batchedStepping + ", ")
+            .append("twoPhaseStepping: " + twoPhaseStepping + ", ")
+            .append("dormantIntersections: " + dormantIntersections + ", ")
+            .append("numThreads: " + numThreads + ", ")
+            .append("shuffledPlacement: " + shuffledPlacement + ", ")
+            .append("eventBoarding: " + eventBoarding + ", ")
+            .append("demandEngine: " + demandEngine + ", ")
+            .append("dispatch: " + dispatch + ", ")
+            .append("dispatchBatchSteps: " + dispatchBatchSteps)
+            .append("}")
+            .toString();
+    }
+
+    /** Collects settings for a new ScenarioConfig. */
+    public static class Builder {
+        private boolean smartTurns = true;
+        private boolean avoidCongestion = true;
+        private boolean reservationPriority = true;
+        private boolean reservationPrioritySmall = false;
+        private boolean passengerWarmStart = false;
+        private double warmStartRate = 0.5;
+        private boolean consoleOut = true;
+        private boolean fileOut = false;
+        private int maxSpeed = 2;
+        private int reportInterval = 600;
+        private boolean batchedStepping = false;
+        private boolean twoPhaseStepping = false;
+        private boolean dormantIntersections = false;
+        private int numThreads = Runtime.getRuntime().availableProcessors();
+        private boolean shuffledPlacement = false;
+        private boolean eventBoarding = false;
+        private boolean demandEngine = false;
+        private boolean dispatch = false;
+        private int dispatchBatchSteps = 0;
+
+        public Builder() {}
+
+        Builder(ScenarioConfig c) {
+            smartTurns = c.smartTurns;
+            avoidCongestion = c.avoidCongestion;
+            reservationPriority = c.reservationPriority;
+            reservationPrioritySmall = c.reservationPrioritySmall;
+            passengerWarmStart = c.passengerWarmStart;
+            warmStartRate = c.warmStartRate;
+            consoleOut = c.consoleOut;
+            fileOut = c.fileOut;
+            maxSpeed = c.maxSpeed;
+            reportInterval = c.reportInterval;
+            batchedStepping = c.batchedStepping;
+            twoPhaseStepping = c.twoPhaseStepping;
+            dormantIntersections = c.dormantIntersections;
+            numThreads = c.numThreads;
+            shuffledPlacement = c.shuffledPlacement;
+            eventBoarding = c.eventBoarding;
+            demandEngine = c.demandEngine;
+            dispatch = c.dispatch;
+            dispatchBatchSteps = c.dispatchBatchSteps;
+        }
+
+        /** Route Drivers with enough passengers toward their destinations. */
+        public Builder smartTurns(boolean b) { smartTurns = b; return this; }
+        /** Choose a new turn when the planned departure leg is blocked. */
+        public Builder avoidCongestion(boolean b) { avoidCongestion = b; return this; }
+        /** Let Vehicles meeting the HOV minimum take reservations from others. */
+        public Builder reservationPriority(boolean b) { reservationPriority = b; return this; }
+        public Builder reservationPrioritySmall(boolean b) { reservationPrioritySmall = b; return this; }
+        /** Seat a passenger in some Vehicles when the world is made. */
+        public Builder passengerWarmStart(boolean b) { passengerWarmStart = b; return this; }
+        public Builder warmStartRate(double r) { warmStartRate = r; return this; }
+        public Builder consoleOut(boolean b) { consoleOut = b; return this; }
+        public Builder fileOut(boolean b) { fileOut = b; return this; }
+        /** Maximum speed of new Vehicles in cells per step. */
+        public Builder maxSpeed(int s) { maxSpeed = s; return this; }
+        /** Steps between reports. */
+        public Builder reportInterval(int n) { reportInterval = n; return this; }
+        /** Step each kind of agent in a single phase Steppable. */
+        public Builder batchedStepping(boolean b) { batchedStepping = b; return this; }
+        /** Step Drivers in a parallel decide pass and a serial commit pass. */
+        public Builder twoPhaseStepping(boolean b) { twoPhaseStepping = b; return this; }
+        /** Skip the steps of idle IntersectionAgents until a Vehicle
+         * enters or requests a reservation.
+         */
+        public Builder dormantIntersections(boolean b) { dormantIntersections = b; return this; }
+        /** Threads of the decide pass of two-phase stepping. */
+        public Builder numThreads(int n) { numThreads = n; return this; }
+        /** Place Vehicles on a shuffled list of free road cells instead of
+         * by rejection sampling. Fast at any density but draws different
+         * random numbers, so runs differ from those placed the old way.
+         */
+        public Builder shuffledPlacement(boolean b) { shuffledPlacement = b; return this; }
+        /** Queue waiting Persons at their origin and board them when a
+         * Vehicle enters it instead of stepping every waiting Person. Runs
+         * differ from those with polling Persons.
+         */
+        public Builder eventBoarding(boolean b) { eventBoarding = b; return this; }
+        /** Generate trips from one {@link DemandEngine} with a random
+         * stream per origin instead of a TripGenerator per Intersection.
+         * Runs differ from those with TripGenerators.
+         */
+        public Builder demandEngine(boolean b) { demandEngine = b; return this; }
+        /** Send the nearest empty Vehicle to each new Person with a
+         * {@link DispatchAgent}. Persons no Vehicle is free for board
+         * passing Vehicles as before.
+         */
+        public Builder dispatch(boolean b) { dispatch = b; return this; }
+        /** Steps over which the DispatchAgent collects new Persons before
+         * matching them all to empty Vehicles at once. Zero dispatches each
+         * Person as it arrives.
+         */
+        public Builder dispatchBatchSteps(int n) { dispatchBatchSteps = n; return this; }
+
+        public ScenarioConfig build() {
+            if (maxSpeed < 1) {
+                throw new IllegalArgumentException("maxSpeed must be positive");
+            }
+            if (reportInterval < 1) {
+                throw new IllegalArgumentException("reportInterval must be positive");
+            }
+            if (numThreads < 1) {
+                throw new IllegalArgumentException("numThreads must be positive");
+            }
+            if (dispatchBatchSteps < 0) {
+                throw new IllegalArgumentException("dispatchBatchSteps must not be negative");
+            }
+            return new ScenarioConfig(this);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs a sweep of independent {@link AgentCity} simulations concurrently.
+ *
+ * <p> Each run is a separate SimState with its own random number generator,
+ * so runs may step on different threads without sharing anything. The pool
+ * is bounded by the number of cores and by how many runs fit in the heap.
+ * The reports of each run go to their own file in the output directory.
+ *
+ * <pre>
+ * java sim.app.agentcity.SweepRunner --seeds 1-64 --grids 4 --density 144 \
+ *     --lanePolicy true,false --tripGenRate 0.2 --hovMin 1,2 --steps 3601 \
+ *     [--smartTurns true,false] [--avoidCongestion true,false] \
+ *     [--reservationPriority true,false] \
+ *     [--out sweep] [--threads 64] [--runMemory 256]
+ * </pre>
+ */
+public class SweepRunner {
+
+    // Utility
+    private static final int DEFAULT_RUN_MEMORY_MB = 256;
+
+    // Properties
+    private final File outputDir;
+    private final long steps;
+    private final int numThreads;
+
+    /** Parameters of one run of a sweep. */
+    public static class Run {
+        public final long seed;
+        public final int grids;
+        public final int density;
+        public final boolean lanePolicy;
+        public final double tripGenRate;
+        public final int hovMin;
+        public final ScenarioConfig config;
+        /** Label of the config in names, empty for a single config. */
+        public final String configName;
+
+        public Run(long seed, int grids, int density, boolean lanePolicy,
+                   double tripGenRate, int hovMin) {
+            this(seed, grids, density, lanePolicy, tripGenRate, hovMin,
+                 ScenarioConfig.DEFAULT, "");
+        }
+
+        public Run(long seed, int grids, int density, boolean lanePolicy,
+                   double tripGenRate, int hovMin, ScenarioConfig config,
+                   String configName) {
+            this.seed = seed;
+            this.grids = grids;
+            this.density = density;
+            this.lanePolicy = lanePolicy;
+            this.tripGenRate = tripGenRate;
+            this.hovMin = hovMin;
+            this.config = config;
+            this.configName = configName;
+        }
+
+        /** Gets a name for this run that is unique within a sweep. */
+        public String getName() {
+            return String.format("seed%d-grids%d-density%d-lane%b-rate%s-hov%d%s",
+                                 seed, grids, density, lanePolicy,
+                                 Double.toString(tripGenRate), hovMin,
+                                 configName.isEmpty() ? "" : "-" + configName);
+        }
+
+        @Override
+        public String toString() { return getName(); }
+    }
+
+    /** Constructor
+     *
+     * @param outputDir directory for the report file of each run.
+     * @param steps number of steps in each run.
+     * @param numThreads most runs to step at once.
+     */
+    public SweepRunner(File outputDir, long steps, int numThreads) {
+        this.outputDir = outputDir;
+        this.steps = steps;
+        this.numThreads = numThreads;
+    }
+
+    /** Gets the number of runs that may step at once given the cores and the
+     * heap, assuming each run needs the provided number of megabytes.
+     */
+    public static int getMaxThreads(int runMemoryMB) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long fit = Runtime.getRuntime().maxMemory() / (runMemoryMB * 1024L * 1024L);
+        return (int)Math.max(1, Math.min(cores, fit));
+    }
+
+    /** Makes every combination of the provided parameters. */
+    public static List<Run> makeGrid(long[] seeds, int[] grids,
+                                     int[] densities, boolean[] lanePolicies,
+                                     double[] tripGenRates, int[] hovMins) {
+        return makeGrid(seeds, grids, densities, lanePolicies, tripGenRates,
+                        hovMins, new ScenarioConfig[] {ScenarioConfig.DEFAULT});
+    }
+
+    /** Makes every combination of the provided parameters and configs. */
+    public static List<Run> makeGrid(long[] seeds, int[] grids,
+                                     int[] densities, boolean[] lanePolicies,
+                                     double[] tripGenRates, int[] hovMins,
+                                     ScenarioConfig[] configs) {
+        List<Run> runs = new ArrayList<Run>();
+        for (long seed : seeds) {
+            for (int g : grids) {
+                for (int d : densities) {
+                    for (boolean lanePolicy : lanePolicies) {
+                        for (double rate : tripGenRates) {
+                            for (int hovMin : hovMins) {
+                                for (int c = 0; c < configs.length; c++) {
+                                    runs.add(new Run(seed, g, d, lanePolicy,
+                                                     rate, hovMin, configs[c],
+                                                     configs.length > 1
+                                                     ? "config" + c : ""));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return runs;
+    }
+
+    /** Runs one simulation, writing its reports to its own file. */
+    void run(Run run) throws IOException {
+        File file = new File(outputDir, run.getName() + ".txt");
+        PrintWriter out =
+            new PrintWriter(new BufferedWriter(new FileWriter(file)));
+        try {
+            AgentCity ac = new AgentCity(run.seed, run.grids, run.density,
+                                         run.lanePolicy,
+                                         new File(outputDir, run.getName()
+                                                  + ".json").getPath(),
+                                         run.tripGenRate, run.hovMin,
+                                         run.config);
+            ac.setReportOut(out);
+            ac.start();
+            ac.run(steps);
+            if (ac.fileout != null) {
+                ac.fileout.close();
+            }
+            ac.kill();
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Runs every provided run and waits for all of them to finish.
+     *
+     * @return the number of runs that failed.
+     */
+    public int runAll(List<Run> runs) throws InterruptedException {
+        outputDir.mkdirs();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final Run run : runs) {
+            futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        run(run);
+                        return null;
+                    }
+                }));
+        }
+        executor.shutdown();
+        int failed = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+                System.err.printf("Finished %s\n", runs.get(i));
+            } catch (ExecutionException e) {
+                failed++;
+                System.err.printf("Failed %s: %s\n", runs.get(i), e.getCause());
+            }
+        }
+        return failed;
+    }
+
+    // Argument parsing
+
+    /** Parses a list like "1,2,5" or a range like "1-64". */
+    static long[] parseLongs(String s) {
+        if (s.matches("\\d+-\\d+")) {
+            String[] ends = s.split("-");
+            long from = Long.parseLong(ends[0]);
+            long to = Long.parseLong(ends[1]);
+            long[] values = new long[(int)(to - from + 1)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = from + i;
+            }
+            return values;
+        }
+        String[] parts = s.split(",");
+        long[] values = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Long.parseLong(parts[i].trim());
+        }
+        return values;
+    }
+
+    static int[] parseInts(String s) {
+        long[] longs = parseLongs(s);
+        int[] values = new int[longs.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (int)longs[i];
+        }
+        return values;
+    }
+
+    static double[] parseDoubles(String s) {
+        String[] parts = s.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    static boolean[] parseBooleans(String s) {
+        String[] parts = s.split(",");
+        boolean[] values = new boolean[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Boolean.parseBoolean(parts[i].trim());
+        }
+        return values;
+    }
+
+    /** Main */
+    public static void main(String[] args) throws InterruptedException {
+        long[] seeds = {1};
+        int[] grids = {4};
+        int[] densities = {144};
+        boolean[] lanePolicies = {true, false};
+        double[] tripGenRates = {0.2};
+        int[] hovMins = {1, 2};
+        long steps = 60 * 60 + 1;
+        String out = "sweep";
+        int runMemory = DEFAULT_RUN_MEMORY_MB;
+        int threads = -1;
+        boolean[] smartTurns = {ScenarioConfig.DEFAULT.smartTurns};
+        boolean[] avoidCongestion = {ScenarioConfig.DEFAULT.avoidCongestion};
+        boolean[] reservationPriority =
+            {ScenarioConfig.DEFAULT.reservationPriority};
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--seeds": seeds = parseLongs(value); break;
+                case "--grids": grids = parseInts(value); break;
+                case "--density": densities = parseInts(value); break;
+                case "--lanePolicy": lanePolicies = parseBooleans(value); break;
+                case "--tripGenRate": tripGenRates = parseDoubles(value); break;
+                case "--hovMin": hovMins = parseInts(value); break;
+                case "--steps": steps = Long.parseLong(value); break;
+                case "--out": out = value; break;
+                case "--threads": threads = Integer.parseInt(value); break;
+                case "--runMemory": runMemory = Integer.parseInt(value); break;
+                case "--smartTurns": smartTurns = parseBooleans(value); break;
+                case "--avoidCongestion":
+                    avoidCongestion = parseBooleans(value); break;
+                case "--reservationPriority":
+                    reservationPriority = parseBooleans(value); break;
+                default:
+                    throw new IllegalArgumentException("Unknown option "
+                                                       + args[i]);
+            }
+        }
+        if (threads < 1) {
+            threads = getMaxThreads(runMemory);
+        }
+
+        List<ScenarioConfig> configs = new ArrayList<ScenarioConfig>();
+        for (boolean smart : smartTurns) {
+            for (boolean avoid : avoidCongestion) {
+                for (boolean priority : reservationPriority) {
+                    configs.add(new ScenarioConfig.Builder()
+                                .smartTurns(smart)
+                                .avoidCongestion(avoid)
+                                .reservationPriority(priority)
+                                .build());
+                }
+            }
+        }
+        List<Run> runs =
+            makeGrid(seeds, grids, densities, lanePolicies, tripGenRates,
+                     hovMins, configs.toArray(new ScenarioConfig[0]));
+        System.err.printf("Running %d runs on %d threads\n",
+                          runs.size(), threads);
+        SweepRunner runner = new SweepRunner(new File(out), steps, threads);
+        int failed = runner.runAll(runs);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
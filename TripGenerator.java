@@ -101,10 +101,9 @@ public class TripGenerator implements Steppable {
                     ac.intersections[rand.nextInt(ac.intersections.length - 1) + 1];
             }
             int newId = (int)step * 10000 + 100 * intersection.idNum + destination.idNum;
-            newPerson = new Person(newId, intersection, destination);
-            ac.addTraveler(newPerson);
+            newPerson = ac.newPerson(newId, intersection, destination);
+            ac.addPerson(newPerson);
             //System.out.println(ac.travelers.numObjs);
-            newPerson.stopper = ac.schedule.scheduleRepeating(newPerson, ac.TRIPGEN_SCHEDULE_NUM, 1);
         }
     }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import sim.engine.*;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Adds a Person for each trip of a recorded trip file at the step of the
+ * trip.
+ *
+ * <p> A trip is a step, an origin Intersection ID number and a destination
+ * Intersection ID number, and trips must be in order of step. Two formats
+ * are read:
+ * <ul>
+ * <li> text, one trip per line as "step,origin,destination". Blank lines
+ * and lines starting with '#' are skipped.
+ * <li> binary, a header of three big-endian ints: the magic number, the
+ * format version and 0, followed by one record of three ints per trip.
+ * </ul>
+ *
+ * <p> The file is streamed. Text goes through a BufferedReader and binary
+ * files are memory-mapped one window at a time, so only the next trip and
+ * one buffer are held whatever the size of the file. Trips recorded for a
+ * step already passed are added at once.
+ *
+ * <pre>
+ * java sim.app.agentcity.TripReplay trips.csv trips.bin
+ * </pre>
+ * converts a text trip file to the binary format.
+ */
+public class TripReplay implements Steppable {
+
+    // MASON
+    private static final long serialVersionUID = 1;
+    Stoppable stopper;
+    long step;
+
+    // Utility
+    /** "ACTR" */
+    public static final int MAGIC = 0x41435452;
+    public static final int VERSION = 1;
+    private static final int HEADER_BYTES = 3 * 4;
+    private static final int RECORD_BYTES = 3 * 4;
+    /** Bytes of a binary trip file mapped at once. */
+    private static final long WINDOW_BYTES = RECORD_BYTES * (1L << 20);
+
+    // Properties
+    public final Path path;
+    public final int numIntersections;
+
+    // Variables
+    private final boolean binary;
+    private BufferedReader reader;
+    private FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowEnd;
+    private long fileSize;
+    // Trips read so far, for error messages
+    private long numRead = 0;
+    // Next trip not yet added, valid if hasNext
+    private boolean hasNext;
+    private long nextStep;
+    private int nextOrigin;
+    private int nextDestination;
+
+    // Accessors
+    /** True if every trip of the file has been added. */
+    public boolean isDone() { return !hasNext; }
+
+    /** Gets the number of trips read from the file so far. */
+    public long getNumRead() { return numRead; }
+
+    /** Opens a trip file and reads its first trip. The file is closed
+     * again if it is not a valid trip file.
+     *
+     * @param path text or binary trip file.
+     * @param numIntersections number of Intersections of the city, numbered
+     * from one, against which trips are checked.
+     */
+    public TripReplay(Path path, int numIntersections) throws IOException {
+        this.path = path;
+        this.numIntersections = numIntersections;
+        binary = isBinary(path);
+        try {
+            if (binary) {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+                fileSize = channel.size();
+                if ((fileSize - HEADER_BYTES) % RECORD_BYTES != 0) {
+                    throw new IOException(path + " ends in a partial trip");
+                }
+                windowEnd = HEADER_BYTES;
+            } else {
+                reader = Files.newBufferedReader(path,
+                                                 StandardCharsets.UTF_8);
+            }
+            readNext();
+        } catch (IOException | RuntimeException e) {
+            try {
+                close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /** True if the file starts with the binary header. */
+    private static boolean isBinary(Path path) throws IOException {
+        try (DataInputStream in =
+                 new DataInputStream(Files.newInputStream(path))) {
+            if (in.readInt() != MAGIC) return false;
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format(
+                    "%s has trip format version %d, expected %d",
+                    path, version, VERSION));
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /** Reads the next trip into nextStep, nextOrigin and nextDestination,
+     * or clears hasNext at the end of the file.
+     */
+    private void readNext() throws IOException {
+        long lastStep = hasNext ? nextStep : Long.MIN_VALUE;
+        hasNext = binary ? readRecord() : readLine();
+        if (!hasNext) {
+            close();
+            return;
+        }
+        numRead++;
+        if (nextStep < lastStep) {
+            throw new IOException(String.format(
+                "%s trip %d at step %d is before step %d",
+                path, numRead, nextStep, lastStep));
+        }
+        if (nextOrigin < 1 || nextOrigin > numIntersections
+            || nextDestination < 1 || nextDestination > numIntersections
+            || nextOrigin == nextDestination) {
+            throw new IOException(String.format(
+                "%s trip %d from %d to %d is not between two of %d "
+                + "Intersections",
+                path, numRead, nextOrigin, nextDestination,
+                numIntersections));
+        }
+    }
+
+    private boolean readRecord() throws IOException {
+        if (window == null || !window.hasRemaining()) {
+            if (windowEnd >= fileSize) return false;
+            long start = windowEnd;
+            windowEnd = Math.min(fileSize, start + WINDOW_BYTES);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                 windowEnd - start);
+        }
+        nextStep = window.getInt();
+        nextOrigin = window.getInt();
+        nextDestination = window.getInt();
+        return true;
+    }
+
+    private boolean readLine() throws IOException {
+        String line;
+        long[] trip;
+        while ((line = reader.readLine()) != null) {
+            trip = parseLine(path, line);
+            if (trip == null) continue;
+            nextStep = trip[0];
+            nextOrigin = (int)trip[1];
+            nextDestination = (int)trip[2];
+            return true;
+        }
+        return false;
+    }
+
+    /** Parses a line of a text trip file into its step, origin and
+     * destination, or returns null if the line has no trip.
+     */
+    private static long[] parseLine(Path path, String line)
+        throws IOException {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) return null;
+        String[] parts = line.split(",");
+        try {
+            if (parts.length == 3) {
+                return new long[] {Long.parseLong(parts[0].trim()),
+                                   Integer.parseInt(parts[1].trim()),
+                                   Integer.parseInt(parts[2].trim())};
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IOException(String.format(
+            "%s line \"%s\" is not step,origin,destination", path, line));
+    }
+
+    /** Closes the file. Trips not yet added are dropped. */
+    public void close() throws IOException {
+        hasNext = false;
+        window = null;
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /** Adds a Person for each trip up to the current step. */
+    public void step(final SimState state) {
+        AgentCity ac = (AgentCity)state;
+        step = ac.schedule.getSteps();
+        try {
+            while (hasNext && nextStep <= step) {
+                int newId = (int)step * 10000 + 100 * nextOrigin
+                    + nextDestination;
+                ac.addPerson(ac.newPerson(newId,
+                                          ac.intersections[nextOrigin],
+                                          ac.intersections[nextDestination]));
+                readNext();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Converts a text trip file to a binary trip file. */
+    public static void convert(Path text, Path out) throws IOException {
+        try (BufferedReader reader =
+                 Files.newBufferedReader(text, StandardCharsets.UTF_8);
+             DataOutputStream data = new DataOutputStream(
+                 new BufferedOutputStream(Files.newOutputStream(out)))) {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(0);
+            String line;
+            long[] trip;
+            while ((line = reader.readLine()) != null) {
+                trip = parseLine(text, line);
+                if (trip == null) continue;
+                if (trip[0] < 0 || trip[0] > Integer.MAX_VALUE) {
+                    throw new IOException(String.format(
+                        "%s step %d does not fit the binary format",
+                        text, trip[0]));
+                }
+                data.writeInt((int)trip[0]);
+                data.writeInt((int)trip[1]);
+                data.writeInt((int)trip[2]);
+            }
+        }
+    }
+
+    /** Main */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: TripReplay trips.csv trips.bin");
+            System.exit(2);
+        }
+        convert(Paths.get(args[0]), Paths.get(args[1]));
+    }
+}
@@ -0,0 +1,15 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+
+/**
+ * An agent whose step is split into a read-only decide pass, which may run
+ * concurrently with the decide pass of other agents, and a commit pass that
+ * applies its changes to the shared state of the simulation.
+ */
+public interface TwoPhaseAgent {
+    void decide(AgentCity ac);
+    void commit(AgentCity ac);
+}
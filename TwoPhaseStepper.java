@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import sim.engine.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Steps an array of {@link TwoPhaseAgent} objects as a single phase of the
+ * schedule.
+ *
+ * <p> The decide pass runs in parallel over all agents on the provided
+ * ForkJoinPool. The commit pass then runs on the calling thread in an order
+ * shuffled with the random number generator of the simulation, as MASON does
+ * for agents with the same ordering, so the result of each step does not
+ * depend on thread timing. A fixed commit order would always give the same
+ * agents the first chance at reservations.
+ *
+ * <p> The {@link SafeSpeedField} of the simulation is brought up to date on
+ * the same pool before the decide pass. Commits read it again, since earlier
+ * commits may change the reservations a safe speed depends on.
+ */
+public class TwoPhaseStepper implements Steppable {
+
+    // MASON
+    private static final long serialVersionUID = 1;
+    Stoppable stopper;
+
+    // Utility
+    /** Number of agents decided by one task before it stops splitting. */
+    private static final int GRAIN = 256;
+
+    // Properties
+    private final TwoPhaseAgent[] agents;
+    private final transient ForkJoinPool pool;
+
+    // Variables
+    private final int[] order;
+
+    /** Constructor
+     *
+     * @param agents the agents stepped by this phase in commit order.
+     * @param pool the pool used for the decide pass.
+     */
+    public TwoPhaseStepper(TwoPhaseAgent[] agents, ForkJoinPool pool) {
+        this.agents = agents;
+        this.pool = pool;
+        order = new int[agents.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+    }
+
+    public void step(final SimState state) {
+        AgentCity ac = (AgentCity)state;
+        ac.safeSpeedField.update(pool);
+        pool.invoke(new DecideTask(ac, 0, agents.length));
+        ac.shuffle(order);
+        for (int i = 0; i < order.length; i++) {
+            agents[order[i]].commit(ac);
+        }
+    }
+
+    private class DecideTask extends RecursiveAction {
+        private static final long serialVersionUID = 1;
+        private final AgentCity ac;
+        private final int from;
+        private final int to;
+
+        DecideTask(AgentCity ac, int from, int to) {
+            this.ac = ac;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from <= GRAIN) {
+                for (int i = from; i < to; i++) {
+                    agents[i].decide(ac);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new DecideTask(ac, from, mid),
+                      new DecideTask(ac, mid, to));
+        }
+    }
+}
@@ -7,14 +7,21 @@ import sim.util.*;
 import sim.engine.*;
 
 /**
+ * A Vehicle is a view of one slot of a {@link VehicleState}, which holds its
+ * location, direction, speed, flags and reporting counters.
+ *
  * @author David Prentiss
  */
-public class Vehicle implements Steppable, Driveable {
+public class Vehicle implements Steppable, Driveable, TwoPhaseAgent {
 
     // MASON
     private static final long serialVersionUID = 1;
     Stoppable stopper;
 
+    // Utility
+    /** Maximum speed of a Vehicle made without one. */
+    public static final int DEFAULT_MAX_SPEED = 2;
+
     // Properties
     /** A label for identifying this Vehicle.
      * This number should be unique but this is not enforced.
@@ -26,10 +33,8 @@ public class Vehicle implements Steppable, Driveable {
     public final int length;
     /** The number of Passengers that may occupy this Vehicle.*/
     public final int passengerCap;
-    /** The maximum speed in grid cells per step of this Vehicle.
-     * Must be one until faster speeds are supported.
-     */
-    public final int MAX_SPEED = 2;
+    /** The maximum speed in grid cells per step of this Vehicle. */
+    public final int MAX_SPEED;
 
     // Agents
     /** The agent responsible for driving this Vehicle. */
@@ -38,32 +43,33 @@ public class Vehicle implements Steppable, Driveable {
     private Bag manifest;
 
     // Variables
-    /** True indicates that this Vehicle is clear to enter the relevant
-     * intersection.
-     */
-    public boolean hasReservation = false;
-    public boolean hasPassengers = false;
-    /** The next Driver.Directive for the Driver of this Vehicle. */
-    private Driver.Directive nextDirective;
-    /** The speed desired by this Vehicle's Driver. */
-    private int desiredSpeed;
     private int hovMin;
 
     // Physical Variables
-    public Int2D location;
-    private Direction direction;
-    private int speed;
-
-    // Reporting variables
-    public int stepsWithPassenger = 0;
-    public int stepsWithoutPassenger = 0;
-    public int stepsTravelingWithPassenger = 0;
-    public int stepsTravelingWithoutPassenger = 0;
-    public int distWithPassenger = 0;
-    public int distWithoutPassenger = 0;
+    /** The VehicleState holding the physical variables of this Vehicle. */
+    private final VehicleState state;
+    /** The slot of this Vehicle in state. */
+    private final int slot;
 
     // Accessors
 
+    /** True indicates that this Vehicle is clear to enter the relevant
+     * intersection.
+     */
+    public boolean hasReservation() {
+        return state.getFlag(slot, VehicleState.HAS_RESERVATION);
+    }
+
+    public void setHasReservation(boolean hasReservation) {
+        state.setFlag(slot, VehicleState.HAS_RESERVATION, hasReservation);
+    }
+
+    public boolean hasPassengers() {
+        return state.getFlag(slot, VehicleState.HAS_PASSENGERS);
+    }
+
+    void setHovMin(int hovMin) { this.hovMin = hovMin; }
+
     public boolean meetsHovMin() {
         return getNumPassengers() >= hovMin;
     }
@@ -71,7 +77,7 @@ public class Vehicle implements Steppable, Driveable {
     public boolean boardVehicle(Person person) {
         if (manifest.numObjs < passengerCap & driver.allowTrip(person)) {
             manifest.add(person);
-            hasPassengers = true;
+            state.setFlag(slot, VehicleState.HAS_PASSENGERS, true);
             return true;
         }
         return false;
@@ -80,7 +86,7 @@ public class Vehicle implements Steppable, Driveable {
     public boolean exitVehicle(Person person) {
         if(manifest.remove(person)) {
             if (manifest.numObjs < 1) {
-                hasPassengers = false;
+                state.setFlag(slot, VehicleState.HAS_PASSENGERS, false);
             }
             return true;
         }
@@ -93,13 +99,13 @@ public class Vehicle implements Steppable, Driveable {
             .append("Vehicle: {")
             .append("idNum: " + idNum)
             .append(", ")
-            .append("location: " + location)
+            .append("location: " + getLocation())
             .append(", ")
-            .append("direction: " + direction)
+            .append("direction: " + getDirection())
             .append(", ")
-            .append("speed: " + speed)
+            .append("speed: " + getSpeed())
             .append(", ")
-            .append("hasPassengers: " + hasPassengers)
+            .append("hasPassengers: " + hasPassengers())
             .append(", ")
             .append("numPassengers: " + getNumPassengers())
             .append("}\n")
@@ -131,7 +137,7 @@ public class Vehicle implements Steppable, Driveable {
     /** Returns the most distant destination this Vehicle's current passengers.
      */
     public Intersection[] getPassengerDestinations() {
-        if (hasPassengers) {
+        if (hasPassengers()) {
             Intersection[] destinations = new Intersection[manifest.numObjs];
             for (int i = 0; i < destinations.length; i++) {
                 destinations[i] = ((Person)manifest.objs[i]).getDestination();
@@ -148,18 +154,42 @@ public class Vehicle implements Steppable, Driveable {
      * @param ac the AgentCity state instance containg this Vehicle.
      */
     public Int2D getLocation(AgentCity ac) {
-        return ac.agentGrid.getObjectLocation(this);
+        return getLocation();
     }
 
     /** Gets the last known grid location of this Vehicle.*/
-    public Int2D getLocation() { return location; }
+    public Int2D getLocation() { return state.getLocation(slot); }
 
+    /** Gets the ID number of the grid cell of this Vehicle. */
+    public int getCell() { return state.getCell(slot); }
 
     /** Gets the current direction of this Vehicle. */
-    public Direction getDirection() { return direction; }
+    public Direction getDirection() { return state.getDirection(slot); }
 
     /** Gets the current speed of this Vehicle. */
-    public int getSpeed() { return speed; }
+    public int getSpeed() { return state.getSpeed(slot); }
+
+    /** Gets the value of one of the reporting counters of this Vehicle.
+     *
+     * @param counter a counter index defined by VehicleState.
+     */
+    public int getCounter(int counter) {
+        return state.getCounter(slot, counter);
+    }
+
+    /** Gets the VehicleState holding the physical variables of this
+     * Vehicle. */
+    public VehicleState getState() { return state; }
+
+    /** Gets the slot of this Vehicle in its VehicleState. */
+    public int getSlot() { return slot; }
+
+    /** Sets the Directive and desired speed this Vehicle will execute on its
+     * next step.
+     */
+    public void setCommand(Driver.Directive directive, int desiredSpeed) {
+        state.setCommand(slot, directive, desiredSpeed);
+    }
 
     /** Creates a Vehicle object with the given ID number.
      * The ID number should be unique but this is not enforced.
@@ -194,11 +224,34 @@ public class Vehicle implements Steppable, Driveable {
      * Length must be one until larger vehicles are supported.
      */
     private Vehicle(int id, final int len, final int cap, Direction dir) {
+        this(id, len, cap, dir, new VehicleState(1), DEFAULT_MAX_SPEED);
+    }
+
+    /** Creates a Vehicle object with the given ID number and initial
+     * direction in the next free slot of the provided VehicleState.
+     * The created vehicle will have the default size of one and passenger
+     * capacity of four.
+     */
+    public Vehicle(int id, Direction dir, VehicleState state) {
+        this(id, 1, 4, dir, state, DEFAULT_MAX_SPEED);
+    }
+
+    /** Creates a Vehicle object with the given ID number, initial direction
+     * and maximum speed in the next free slot of the provided VehicleState.
+     */
+    public Vehicle(int id, Direction dir, VehicleState state, int maxSpeed) {
+        this(id, 1, 4, dir, state, maxSpeed);
+    }
+
+    private Vehicle(int id, final int len, final int cap, Direction dir,
+                    VehicleState state, int maxSpeed) {
         idNum = id;
+        MAX_SPEED = maxSpeed;
         length = len;
         passengerCap = cap;
         manifest = new Bag(passengerCap);
-        direction = dir;
+        this.state = state;
+        slot = state.add(id, dir, MAX_SPEED);
     }
 
     /** Set the location of this Vehicle on the grid in provided state at the
@@ -208,26 +261,40 @@ public class Vehicle implements Steppable, Driveable {
         // Check if new location x, y is on the grid
         if (ac.checkBounds(x, y)) {
             // Set this Vehicle at the new location
-            ac.agentGrid.setObjectLocation(this, x, y);
-            location = new Int2D(x, y);
+            state.setLocation(slot, ac, x, y);
         }
     }
 
     /** Set the location of this Vehicle on the grid in provided state at the
      * provided (Int2D) location.
      */
-    private void setLocation(AgentCity ac, Int2D loc) {
+    void setLocation(AgentCity ac, Int2D loc) {
         setLocation(ac, loc.x, loc.y);
     }
 
-    /** Set the direction of this Vehicle. */
-    private void setDirection(Direction dir) {
-        direction = dir;
+    /** Computes the move this Vehicle will make on the next commit without
+     * changing its location, speed or direction.
+     *
+     * <p> Only this Vehicle and its Driver are read so the decide pass may run
+     * concurrently for all Vehicles.
+     *
+     * @param ac the current state of the simulation.
+     */
+    public void decide(AgentCity ac) {
+        hovMin = ac.HOV_MIN;
+        // Get next directive and desired speed from Driver
+        state.setCommand(slot, driver.getNextDirective(),
+                         driver.getDesiredSpeed());
+        state.decide(slot);
     }
 
-    /** Set the speed of this Vehicle. */
-    private void setSpeed(int s) {
-        speed = s;
+    /** Applies the move computed by {@link #decide(AgentCity)} to the grid
+     * and updates the reporting variables of this Vehicle.
+     *
+     * @param ac the current state of the simulation.
+     */
+    public void commit(AgentCity ac) {
+        state.commit(slot, ac);
     }
 
     /** Actions this vehicle should take on each step.
@@ -241,108 +308,7 @@ public class Vehicle implements Steppable, Driveable {
     public void step(final SimState state) {
         // The current simulation state
         AgentCity ac = (AgentCity)state;
-        hovMin = ac.HOV_MIN;
-
-        // Get location from state
-        location = ac.agentGrid.getObjectLocation(this);
-
-        // Get next directive from Driver
-        Driver.Directive nextDirective = driver.getNextDirective();
-        // Get desired Speed from Driver
-        int desiredSpeed = driver.getDesiredSpeed();
-
-        // Execute Directive from Driver
-        switch (nextDirective) {
-        case MOVE_FORWARD:
-            if (speed < MAX_SPEED && speed < desiredSpeed) {
-                setSpeed(speed + 1);
-            } else if (speed > desiredSpeed) {
-                setSpeed(desiredSpeed);
-            }
-            if (speed > 0) {
-                setLocation(ac,
-                            location.x + speed * direction.getXOffset(),
-                            location.y + speed * direction.getYOffset()
-                            );
-            }
-            break;
-        case STOP:
-            if (desiredSpeed > 0) {
-                setLocation(ac,
-                            location.x + desiredSpeed * direction.getXOffset(),
-                            location.y + desiredSpeed * direction.getYOffset()
-                            );
-            }
-            setSpeed(0);
-            break;
-        case TURN_RIGHT:
-            if (desiredSpeed > 0) {
-                setLocation(ac,
-                            location.x + desiredSpeed * direction.getXOffset(),
-                            location.y + desiredSpeed * direction.getYOffset()
-                            );
-            }
-            setDirection(direction.onRight());
-            setSpeed(0);
-            break;
-        case TURN_LEFT:
-            if (desiredSpeed > 0) {
-                setLocation(ac,
-                            location.x + desiredSpeed * direction.getXOffset(),
-                            location.y + desiredSpeed * direction.getYOffset()
-                            );
-            }
-            setDirection(direction.onLeft());
-            setSpeed(0);
-            break;
-        case MERGE_RIGHT:
-            if (speed < MAX_SPEED && speed < desiredSpeed) {
-                setSpeed(speed + 1);
-            } else if (speed > desiredSpeed) {
-                setSpeed(desiredSpeed);
-            }
-            if (speed > 0) {
-                setLocation(ac,
-                            location.x
-                            + speed * direction.getXOffset()
-                            + direction.onRight().getXOffset(),
-                            location.y
-                            + speed * direction.getYOffset()
-                            + direction.onRight().getYOffset()
-                            );
-            }
-            break;
-        case MERGE_LEFT:
-            if (speed < MAX_SPEED && speed < desiredSpeed) {
-                setSpeed(speed + 1);
-            } else if (speed > desiredSpeed) {
-                setSpeed(desiredSpeed);
-            }
-            if (speed > 0) {
-                setLocation(ac,
-                            location.x
-                            + speed * direction.getXOffset()
-                            + direction.onLeft().getXOffset(),
-                            location.y
-                            + speed * direction.getYOffset()
-                            + direction.onLeft().getYOffset()
-                            );
-            }
-            break;
-        }
-
-        if (hasPassengers) {
-            stepsWithPassenger++;
-            if (speed > 0) {
-                distWithPassenger += speed;
-                stepsTravelingWithPassenger++;
-            }
-        } else {
-            stepsWithoutPassenger++;
-            if (speed > 0) {
-                distWithoutPassenger += speed;
-                stepsTravelingWithoutPassenger++;
-            }
-        }
+        decide(ac);
+        commit(ac);
     }
 }
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import sim.util.*;
+import sim.engine.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Physical state of a fleet of {@link Vehicle} objects kept in primitive
+ * parallel arrays.
+ *
+ * <p> Each Vehicle is a view of one slot of a VehicleState. The slot holds
+ * the cell ID of the Vehicle, its direction, speed and maximum speed, a
+ * bitfield of flags, its reporting counters and the last Directive and
+ * desired speed published by its Driver. A {@link DriverAgent} reads the
+ * location, speed, direction and reservation of its Vehicle through the
+ * same slot rather than keeping copies.
+ *
+ * <p> As a Steppable, a VehicleState moves every Vehicle in one loop over
+ * these arrays. The moves are decided first, in parallel if a ForkJoinPool
+ * was provided, and then committed to the grid in slot order.
+ */
+public class VehicleState implements Steppable {
+
+    // MASON
+    private static final long serialVersionUID = 1;
+    Stoppable stopper;
+
+    // Flags
+    public static final int HAS_RESERVATION = 1;
+    public static final int HAS_PASSENGERS = 2;
+
+    // Counters
+    public static final int STEPS_WITH_PASSENGER = 0;
+    public static final int STEPS_WITHOUT_PASSENGER = 1;
+    public static final int STEPS_TRAVELING_WITH_PASSENGER = 2;
+    public static final int STEPS_TRAVELING_WITHOUT_PASSENGER = 3;
+    public static final int DIST_WITH_PASSENGER = 4;
+    public static final int DIST_WITHOUT_PASSENGER = 5;
+    public static final int NUM_COUNTERS = 6;
+
+    // Utility
+    /** Number of slots decided by one task before it stops splitting. */
+    private static final int GRAIN = 1024;
+    private static final Driver.Directive[] DIRECTIVES =
+        Driver.Directive.values();
+    private static final int[] X_OFFSETS = new int[10];
+    private static final int[] Y_OFFSETS = new int[10];
+    private static final byte[] ON_LEFT = new byte[10];
+    private static final byte[] ON_RIGHT = new byte[10];
+    static {
+        for (Direction dir : Direction.values()) {
+            X_OFFSETS[dir.toInt()] = dir.getXOffset();
+            Y_OFFSETS[dir.toInt()] = dir.getYOffset();
+            ON_LEFT[dir.toInt()] = (byte)dir.onLeft().toInt();
+            ON_RIGHT[dir.toInt()] = (byte)dir.onRight().toInt();
+        }
+    }
+
+    // Properties
+    public final int capacity;
+    private int gridWidth;
+    private int gridHeight;
+    private RoadTopology topology;
+    private transient ForkJoinPool pool;
+
+    // Variables
+    private int size = 0;
+    /** Incremented whenever any Vehicle may have moved. */
+    private long version = 0;
+    private final int[] ids;
+    private final int[] cells;
+    private final byte[] directions;
+    private final byte[] speeds;
+    private final byte[] maxSpeeds;
+    private final byte[] flags;
+    private final int[] counters;
+    private final byte[] directives;
+    private final byte[] desiredSpeeds;
+    // Pending moves computed by decide() and applied by commit()
+    private final int[] nextCells;
+    private final byte[] nextDirections;
+    private final byte[] nextSpeeds;
+
+    /** Constructor
+     *
+     * @param capacity the number of Vehicle slots.
+     */
+    public VehicleState(int capacity) {
+        this.capacity = capacity;
+        ids = new int[capacity];
+        cells = new int[capacity];
+        directions = new byte[capacity];
+        speeds = new byte[capacity];
+        maxSpeeds = new byte[capacity];
+        flags = new byte[capacity];
+        counters = new int[capacity * NUM_COUNTERS];
+        directives = new byte[capacity];
+        desiredSpeeds = new byte[capacity];
+        nextCells = new int[capacity];
+        nextDirections = new byte[capacity];
+        nextSpeeds = new byte[capacity];
+    }
+
+    /** Sets the grid used to decode cell IDs and the pool used to decide
+     * moves in parallel. The pool may be null.
+     */
+    public void attach(AgentCity ac, ForkJoinPool pool) {
+        gridWidth = ac.gridWidth;
+        gridHeight = ac.gridHeight;
+        topology = ac.roadTopology;
+        this.pool = pool;
+    }
+
+    /** Adds a Vehicle to the next free slot and returns the slot. */
+    int add(int id, Direction dir, int maxSpeed) {
+        int slot = size;
+        size++;
+        ids[slot] = id;
+        cells[slot] = -1;
+        nextCells[slot] = -1;
+        directions[slot] = (byte)dir.toInt();
+        maxSpeeds[slot] = (byte)maxSpeed;
+        directives[slot] = (byte)Driver.Directive.NONE.ordinal();
+        return slot;
+    }
+
+    public int size() { return size; }
+
+    /** Gets a number that changes whenever the location, direction or speed
+     * of any slot may have changed.
+     */
+    public long getVersion() { return version; }
+
+    // Accessors by slot
+
+    public int getCell(int slot) { return cells[slot]; }
+
+    public Int2D getLocation(int slot) {
+        int cell = cells[slot];
+        if (cell < 0) return null;
+        if (topology != null) {
+            int r = topology.getRoadId(cell);
+            if (r != RoadTopology.NONE) return topology.getLocation(r);
+        }
+        return new Int2D(cell / gridHeight, cell % gridHeight);
+    }
+
+    void setLocation(int slot, AgentCity ac, int x, int y) {
+        if (gridHeight == 0) {
+            gridWidth = ac.gridWidth;
+            gridHeight = ac.gridHeight;
+        }
+        int cell = ac.getCellId(x, y);
+        ac.moveVehicle(ids[slot], cells[slot], cell);
+        cells[slot] = cell;
+        version++;
+    }
+
+    public Direction getDirection(int slot) {
+        return Direction.byInt(directions[slot]);
+    }
+
+    public int getSpeed(int slot) { return speeds[slot]; }
+
+    public boolean getFlag(int slot, int flag) {
+        return (flags[slot] & flag) != 0;
+    }
+
+    public void setFlag(int slot, int flag, boolean value) {
+        if (value) {
+            flags[slot] |= flag;
+        } else {
+            flags[slot] &= ~flag;
+        }
+    }
+
+    public int getCounter(int slot, int counter) {
+        return counters[slot * NUM_COUNTERS + counter];
+    }
+
+    /** Gets the sum of the provided counter over all slots. */
+    public int getCounterTotal(int counter) {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            total += counters[i * NUM_COUNTERS + counter];
+        }
+        return total;
+    }
+
+    /** Sets the Directive and desired speed for the next move of a slot. */
+    public void setCommand(int slot, Driver.Directive directive,
+                           int desiredSpeed) {
+        directives[slot] = (byte)directive.ordinal();
+        desiredSpeeds[slot] = (byte)desiredSpeed;
+    }
+
+    // Movement
+
+    /** Computes the next cell, direction and speed of a slot from its
+     * current command without changing anything else. Moves off the grid
+     * are ignored.
+     */
+    void decide(int slot) {
+        int dir = directions[slot];
+        int speed = speeds[slot];
+        int maxSpeed = maxSpeeds[slot];
+        int desiredSpeed = desiredSpeeds[slot];
+        int nextSpeed = speed;
+        int nextDir = dir;
+        int dist = 0;
+        int lateral = Direction.NONE.toInt();
+        boolean moving = false;
+
+        switch (DIRECTIVES[directives[slot]]) {
+        case MOVE_FORWARD:
+            nextSpeed = accelerate(speed, maxSpeed, desiredSpeed);
+            moving = nextSpeed > 0;
+            dist = nextSpeed;
+            break;
+        case STOP:
+            moving = desiredSpeed > 0;
+            dist = desiredSpeed;
+            nextSpeed = 0;
+            break;
+        case TURN_RIGHT:
+            moving = desiredSpeed > 0;
+            dist = desiredSpeed;
+            nextDir = ON_RIGHT[dir];
+            nextSpeed = 0;
+            break;
+        case TURN_LEFT:
+            moving = desiredSpeed > 0;
+            dist = desiredSpeed;
+            nextDir = ON_LEFT[dir];
+            nextSpeed = 0;
+            break;
+        case MERGE_RIGHT:
+            nextSpeed = accelerate(speed, maxSpeed, desiredSpeed);
+            moving = nextSpeed > 0;
+            dist = nextSpeed;
+            lateral = ON_RIGHT[dir];
+            break;
+        case MERGE_LEFT:
+            nextSpeed = accelerate(speed, maxSpeed, desiredSpeed);
+            moving = nextSpeed > 0;
+            dist = nextSpeed;
+            lateral = ON_LEFT[dir];
+            break;
+        default:
+            break;
+        }
+
+        nextCells[slot] = cells[slot];
+        if (moving) {
+            int cell = cells[slot];
+            int x = cell / gridHeight + dist * X_OFFSETS[dir]
+                + X_OFFSETS[lateral];
+            int y = cell % gridHeight + dist * Y_OFFSETS[dir]
+                + Y_OFFSETS[lateral];
+            if (x >= 0 && x < gridWidth && y >= 0 && y < gridHeight) {
+                nextCells[slot] = x * gridHeight + y;
+            }
+        }
+        nextDirections[slot] = (byte)nextDir;
+        nextSpeeds[slot] = (byte)nextSpeed;
+    }
+
+    private static int accelerate(int speed, int maxSpeed, int desiredSpeed) {
+        if (speed < maxSpeed && speed < desiredSpeed) {
+            return speed + 1;
+        } else if (speed > desiredSpeed) {
+            return desiredSpeed;
+        }
+        return speed;
+    }
+
+    /** Applies the move computed by {@link #decide(int)} to a slot and the
+     * occupancy of the provided state and updates its counters.
+     */
+    void commit(int slot, AgentCity ac) {
+        version++;
+        int next = nextCells[slot];
+        if (next != cells[slot]) {
+            ac.moveVehicle(ids[slot], cells[slot], next);
+            cells[slot] = next;
+        }
+        int speed = nextSpeeds[slot];
+        speeds[slot] = (byte)speed;
+        directions[slot] = nextDirections[slot];
+
+        int base = slot * NUM_COUNTERS;
+        if ((flags[slot] & HAS_PASSENGERS) != 0) {
+            counters[base + STEPS_WITH_PASSENGER]++;
+            if (speed > 0) {
+                counters[base + DIST_WITH_PASSENGER] += speed;
+                counters[base + STEPS_TRAVELING_WITH_PASSENGER]++;
+            }
+        } else {
+            counters[base + STEPS_WITHOUT_PASSENGER]++;
+            if (speed > 0) {
+                counters[base + DIST_WITHOUT_PASSENGER] += speed;
+                counters[base + STEPS_TRAVELING_WITHOUT_PASSENGER]++;
+            }
+        }
+    }
+
+    /** Moves every Vehicle according to the commands published by their
+     * Drivers.
+     */
+    public void step(final SimState state) {
+        AgentCity ac = (AgentCity)state;
+        if (pool != null) {
+            pool.invoke(new DecideTask(0, size));
+        } else {
+            for (int i = 0; i < size; i++) {
+                decide(i);
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            commit(i, ac);
+        }
+    }
+
+    private class DecideTask extends RecursiveAction {
+        private static final long serialVersionUID = 1;
+        private final int from;
+        private final int to;
+
+        DecideTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from <= GRAIN) {
+                for (int i = from; i < to; i++) {
+                    decide(i);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new DecideTask(from, mid), new DecideTask(mid, to));
+        }
+    }
+}
@@ -14,6 +14,12 @@ public class Waypoint {
         this.directive = directive;
     }
 
+    /** Points this Waypoint at another cell and directive. */
+    public void set(Int2D cell, Driver.Directive directive) {
+        this.cell = cell;
+        this.directive = directive;
+    }
+
     @Override
     public String toString() {
         return new StringBuilder()
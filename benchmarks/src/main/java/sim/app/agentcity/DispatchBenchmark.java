@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import org.openjdk.jmh.annotations.*;
+import sim.util.Bag;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of nearest available Vehicle lookups and batch matching by
+ * {@link DispatchAgent}.
+ *
+ * <p> The fleet is placed and indexed but not stepped, so every Vehicle is
+ * available. Grids 20 at density 256 is a fleet of 102,400 Vehicles.
+ * Each findNearest invocation looks up one pickup cell from a fixed random
+ * sequence. Each solve invocation matches one batch of Persons at random
+ * origins, leaving the fleet as it was.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+
+    /** A dispatched fleet and the pickup cells to look up. */
+    @State(Scope.Thread)
+    public static class Fleet {
+        @Param({"4", "20"})
+        public int grids;
+
+        @Param({"256"})
+        public int density;
+
+        public AgentCity ac;
+        public int[] xs = new int[1 << 16];
+        public int[] ys = new int[1 << 16];
+        public int next = 0;
+
+        @Setup(Level.Trial)
+        public void build() {
+            ScenarioConfig config = new ScenarioConfig.Builder()
+                .dispatch(true)
+                .shuffledPlacement(true)
+                .consoleOut(false)
+                .build();
+            ac = new AgentCity(1, grids, density, false, "benchmark.json",
+                               0.2, 1, config);
+            ac.start();
+            Random random = new Random(1);
+            for (int i = 0; i < xs.length; i++) {
+                xs[i] = random.nextInt(ac.gridWidth);
+                ys[i] = random.nextInt(ac.gridHeight);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void destroy() {
+            ac.finish();
+            ac = null;
+        }
+    }
+
+    /** Persons at random origins to match as one batch. */
+    @State(Scope.Thread)
+    public static class Batch {
+        @Param({"1000", "5000"})
+        public int requests;
+
+        public Bag persons = new Bag();
+
+        @Setup(Level.Trial)
+        public void build(Fleet fleet) {
+            AgentCity ac = fleet.ac;
+            Random random = new Random(2);
+            int numIntersections = ac.intersections.length - 1;
+            for (int i = 0; i < requests; i++) {
+                int origin = random.nextInt(numIntersections) + 1;
+                int destination = origin % numIntersections + 1;
+                persons.add(new Person(i, ac.intersections[origin],
+                                       ac.intersections[destination]));
+            }
+        }
+    }
+
+    @Benchmark
+    public int findNearest(Fleet fleet) {
+        int i = fleet.next++ & (fleet.xs.length - 1);
+        return fleet.ac.dispatcher.findNearest(fleet.xs[i], fleet.ys[i]);
+    }
+
+    @Benchmark
+    public int solve(Fleet fleet, Batch batch) {
+        return fleet.ac.dispatcher.solve(batch.persons);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import sim.engine.*;
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Check that stepping DriverAgents allocates nothing once the simulation is
+ * warm.
+ *
+ * <p> The DriverAgents of a fixed-seed test grid city are taken off the
+ * schedule and stepped in a shuffled order by one Steppable in their place,
+ * which counts the bytes allocated by the simulation thread while they step.
+ * The reservation path of every approaching DriverAgent is then built
+ * again, since the template caches leave the path builder to cache misses.
+ * The city uses the default ScenarioConfig.
+ *
+ * <p> Rare movements and crowds keep adding reservation templates and
+ * growing reservation tables for thousands of steps, and that storage is
+ * kept. The bytes of every array or template an IntersectionAgent keeps
+ * that was not there before a step are subtracted from the bytes it
+ * allocated, each sized by allocating one of the same shape. If any bytes
+ * are left after the warm-up steps, they are reported and the exit status
+ * is non-zero. The build runs this check in the package phase.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar sim.app.agentcity.DriverAllocationCheck \
+ *     [--steps 600] [--warmup 1200] [--seed 1] [--grids 2] [--density 144]
+ * </pre>
+ */
+public class DriverAllocationCheck {
+
+    // Properties
+    private long steps = 600;
+    private long warmup = 1200;
+    private long seed = 1;
+    private int grids = 2;
+    private int density = 144;
+
+    // Variables
+    private long allocatedBytes = 0;
+    private long allocatingSteps = 0;
+    private long keptBytes = 0;
+    private boolean measuring = false;
+    // Arrays and templates kept by IntersectionAgents so far
+    private final Map<Object, Object> retained = new IdentityHashMap<>();
+    // Bytes of an array by class and length, or of a template by class
+    private final Map<Class<?>, Map<Integer, Long>> sizes = new HashMap<>();
+    private long added;
+    private Object sink;
+
+    /** Steps every DriverAgent in an order shuffled every step, as batched
+     * stepping does, counting the bytes allocated while measuring.
+     */
+    private class DriverSweep implements Steppable {
+        private static final long serialVersionUID = 1;
+        private final int[] order;
+        private final long overhead;
+
+        DriverSweep(int numDrivers) {
+            order = new int[numDrivers];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            long start = ScenarioBenchmark.getAllocatedBytes();
+            overhead = ScenarioBenchmark.getAllocatedBytes() - start;
+        }
+
+        public void step(final SimState state) {
+            AgentCity ac = (AgentCity)state;
+            // storage kept by the other phases is not counted
+            addRetained(ac);
+            long start = ScenarioBenchmark.getAllocatedBytes();
+            ac.shuffle(order);
+            for (int i = 0; i < order.length; i++) {
+                ac.drivers[order[i]].step(ac);
+            }
+            DriverAgent driver;
+            for (int i = 0; i < ac.drivers.length; i++) {
+                driver = ac.drivers[i];
+                if (driver.waypoints != null && !driver.inIntersection) {
+                    driver.fillPathBuffer(driver.waypoints,
+                                          driver.getLocation(),
+                                          driver.getDirection(),
+                                          driver.getSpeed(), driver.maxSpeed);
+                }
+            }
+            long allocated =
+                ScenarioBenchmark.getAllocatedBytes() - start - overhead;
+            long kept = addRetained(ac);
+            if (!measuring) return;
+            keptBytes += kept;
+            if (allocated > kept) {
+                allocatedBytes += allocated - kept;
+                allocatingSteps++;
+            }
+        }
+    }
+
+    /** Notes the arrays and templates kept by every IntersectionAgent and
+     * returns the bytes of those not kept before.
+     */
+    private long addRetained(AgentCity ac) {
+        added = 0;
+        for (int i = 1; i < ac.intersectionAgents.length; i++) {
+            ac.intersectionAgents[i].forEachRetained(o -> {
+                    if (retained.put(o, o) == null) added += sizeOf(o);
+                });
+        }
+        return added;
+    }
+
+    /** Gets the bytes allocated for an object of the same class and, if it
+     * is an array, the same length.
+     */
+    private long sizeOf(Object o) {
+        Class<?> type = o.getClass();
+        int length = type.isArray() ? Array.getLength(o) : -1;
+        Map<Integer, Long> byLength = sizes.get(type);
+        if (byLength == null) {
+            byLength = new HashMap<>();
+            sizes.put(type, byLength);
+        }
+        Long size = byLength.get(length);
+        if (size == null) {
+            long start = ScenarioBenchmark.getAllocatedBytes();
+            sink = type.isArray()
+                ? Array.newInstance(type.getComponentType(), length)
+                : new ReservationTemplate(null);
+            size = ScenarioBenchmark.getAllocatedBytes() - start;
+            byLength.put(length, size);
+        }
+        return size;
+    }
+
+    /** Runs the check and returns the bytes allocated by DriverAgents
+     * after the warm-up, less the storage kept by IntersectionAgents.
+     */
+    long run() {
+        if (ScenarioBenchmark.getAllocatedBytes() < 0) {
+            throw new IllegalStateException(
+                "Thread allocation counters are not supported by this JVM");
+        }
+        ScenarioConfig config = new ScenarioConfig.Builder().build();
+        AgentCity ac = new AgentCity(seed, grids, density, false,
+                                     "allocation.json", 0.2, 1, config);
+        ac.start();
+        if (ac.isBatched()) {
+            throw new IllegalStateException(
+                "DriverAgent allocation check needs per-agent scheduling");
+        }
+        for (int i = 0; i < ac.drivers.length; i++) {
+            ac.drivers[i].stopper.stop();
+            ac.drivers[i].stopper = null;
+        }
+        ac.schedule.scheduleRepeating(new DriverSweep(ac.drivers.length),
+                                      AgentCity.DRIVER_SCHEDULE_NUM, 1);
+        ac.run(warmup);
+        measuring = true;
+        ac.run(steps);
+        measuring = false;
+        if (ac.fileout != null) {
+            ac.fileout.close();
+        }
+        ac.kill();
+        return allocatedBytes;
+    }
+
+    void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("--steps")) {
+                steps = Long.parseLong(value);
+            } else if (arg.equals("--warmup")) {
+                warmup = Long.parseLong(value);
+            } else if (arg.equals("--seed")) {
+                seed = Long.parseLong(value);
+            } else if (arg.equals("--grids")) {
+                grids = Integer.parseInt(value);
+            } else if (arg.equals("--density")) {
+                density = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        DriverAllocationCheck check = new DriverAllocationCheck();
+        check.parseArgs(args);
+        long allocated = check.run();
+        System.err.printf("DriverAgent steps allocated %d bytes in %d of %d "
+                          + "steps after %d warm-up steps, besides %d bytes "
+                          + "kept by caches and tables\n",
+                          allocated, check.allocatingSteps, check.steps,
+                          check.warmup, check.keptBytes);
+        if (allocated > 0) {
+            System.exit(1);
+        }
+    }
+}
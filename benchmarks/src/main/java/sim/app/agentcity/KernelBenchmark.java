@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the per-agent methods called on every step.
+ *
+ * <p> Each invocation sweeps one method over every agent of the world it
+ * applies to. The world is moved one step before each invocation so every
+ * sweep sees fresh state, as it would inside the schedule; only the sweep is
+ * measured. Run with {@code -prof gc} for allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KernelBenchmark {
+
+    /** Moves the world one step before each invocation. */
+    @State(Scope.Thread)
+    public static class StepWorld {
+        @Setup(Level.Invocation)
+        public void advance(World world) {
+            world.step();
+        }
+    }
+
+    /** World whose Vehicles are taken off the schedule and stepped by the
+     * benchmark, after which the rest of the step is run.
+     */
+    @State(Scope.Thread)
+    public static class DetachedVehicles {
+        @Setup(Level.Trial)
+        public void detach(World world) {
+            AgentCity ac = world.ac;
+            if (ac.isBatched()) {
+                throw new IllegalStateException(
+                    "Vehicle.step benchmark needs per-agent scheduling");
+            }
+            for (int i = 0; i < ac.vehicles.length; i++) {
+                ac.vehicles[i].stopper.stop();
+                ac.vehicles[i].stopper = null;
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void finishStep(World world) {
+            world.step();
+        }
+    }
+
+    @Benchmark
+    public int safeSpeed(World world, StepWorld stepped) {
+        AgentCity ac = world.ac;
+        int sum = 0;
+        for (int i = 0; i < ac.drivers.length; i++) {
+            sum += ac.drivers[i].getSafeSpeed(ac);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void reservationPath(World world, StepWorld stepped, Blackhole bh) {
+        AgentCity ac = world.ac;
+        DriverAgent driver;
+        for (int i = 0; i < ac.drivers.length; i++) {
+            driver = ac.drivers[i];
+            if (driver.waypoints != null && !driver.inIntersection) {
+                bh.consume(driver.getReservationPath(driver.waypoints));
+            }
+        }
+    }
+
+    @Benchmark
+    public void updateDestination(World world, StepWorld stepped,
+                                  Blackhole bh) {
+        AgentCity ac = world.ac;
+        DriverAgent driver;
+        for (int i = 0; i < ac.drivers.length; i++) {
+            driver = ac.drivers[i];
+            // only Drivers without a reservation may change their plan
+            if (!driver.hasReservation() && !driver.inIntersection) {
+                driver.updateDestination(ac);
+                bh.consume(driver.nextLeg);
+            }
+        }
+    }
+
+    /** Requests the reservation each waiting Driver would ask for and
+     * cancels any that is granted, leaving the schedule as it was.
+     */
+    @Benchmark
+    public int requestAndRemoveReservation(World world, StepWorld stepped) {
+        AgentCity ac = world.ac;
+        DriverAgent driver;
+        IntersectionAgent agent;
+        int granted = 0;
+        for (int i = 0; i < ac.drivers.length; i++) {
+            driver = ac.drivers[i];
+            if (driver.hasReservation() || driver.reservationPath == null
+                || driver.nextIntersection == null) {
+                continue;
+            }
+            agent = ac.getController(driver.nextIntersection);
+            if (agent.requestReservation(driver.vehicle,
+                                         driver.reservationTime,
+                                         driver.reservationPath)) {
+                agent.removeVehicleFromSchedule(driver.vehicle);
+                granted++;
+            }
+        }
+        return granted;
+    }
+
+    @Benchmark
+    public void intersectionStep(World world, StepWorld stepped) {
+        AgentCity ac = world.ac;
+        for (int i = 0; i < ac.intersectionAgents.length; i++) {
+            if (ac.intersectionAgents[i] != null) {
+                ac.intersectionAgents[i].step(ac);
+            }
+        }
+    }
+
+    @Benchmark
+    public void vehicleStep(World world, DetachedVehicles detached) {
+        AgentCity ac = world.ac;
+        for (int i = 0; i < ac.vehicles.length; i++) {
+            ac.vehicles[i].step(ac);
+        }
+    }
+}
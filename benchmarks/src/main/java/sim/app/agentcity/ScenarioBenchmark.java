@@ -0,0 +1,353 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Headless benchmark of whole simulations on fixed-seed test grid cities.
+ *
+ * <p> Every combination of grids, density, lane policy and HOV minimum is
+ * run for the same number of steps. For each scenario the steps per second,
+ * the median and 99th percentile wall time of one step, the peak heap and
+ * the bytes allocated by the simulation thread are reported and written to
+ * a JSON file. Each scenario is run several times on a new city and the
+ * median of each measurement over the repetitions is kept, so that one
+ * run disturbed by the machine does not decide a comparison. When a
+ * baseline file from an earlier run is given, scenarios whose median
+ * throughput or p99 step time is worse than the baseline by more than
+ * the threshold are reported and the exit status is non-zero. The JVM and
+ * machine are written with the results, since a baseline is only
+ * comparable on the machine that recorded it.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar sim.app.agentcity.ScenarioBenchmark \
+ *     [--steps 1800] [--warmup 200] [--seed 1] [--grids 2,4,8,16] \
+ *     [--density 64,144,256] [--repeats 5] [--threshold 0.10] \
+ *     [--baseline base.json] [--out results.json]
+ * </pre>
+ */
+public class ScenarioBenchmark {
+
+    // Utility
+    private static final Pattern FIELD =
+        Pattern.compile("\"(\\w+)\"\\s*:\\s*(\"([^\"]*)\"|[-0-9.eE]+)");
+    // Results do not depend on dormant intersections, only the time taken
+    private static final ScenarioConfig CONFIG =
+        new ScenarioConfig.Builder().dormantIntersections(true).build();
+    // Looked up once since the lookup itself allocates
+    private static final ThreadMXBean THREADS =
+        ManagementFactory.getThreadMXBean();
+
+    // Properties
+    private long steps = 1800;
+    private long warmup = 200;
+    private long seed = 1;
+    private int[] grids = {2, 4, 8, 16};
+    private int[] densities = {64, 144, 256};
+    private boolean[] lanePolicies = {false, true};
+    private int[] hovMins = {1, 2};
+    private int repeats = 5;
+    private double threshold = 0.10;
+    private String baselineFile = null;
+    private String outputFile = "scenarios.json";
+
+    /** Measurements of one scenario. */
+    static class Result {
+        String name;
+        double stepsPerSecond;
+        double p50StepMillis;
+        double p99StepMillis;
+        long peakHeapBytes;
+        long allocatedBytes;
+
+        String toJson() {
+            return String.format(Locale.ROOT,
+                "{\"name\": \"%s\", \"stepsPerSecond\": %.3f, "
+                + "\"p50StepMillis\": %.6f, \"p99StepMillis\": %.6f, "
+                + "\"peakHeapBytes\": %d, \"allocatedBytes\": %d}",
+                name, stepsPerSecond, p50StepMillis, p99StepMillis,
+                peakHeapBytes, allocatedBytes);
+        }
+    }
+
+    /** Gets the median of each measurement of the repetitions of one
+     * scenario.
+     */
+    static Result getMedian(Result[] runs) {
+        int n = runs.length;
+        double[] stepsPerSecond = new double[n];
+        double[] p50StepMillis = new double[n];
+        double[] p99StepMillis = new double[n];
+        long[] peakHeapBytes = new long[n];
+        long[] allocatedBytes = new long[n];
+        for (int i = 0; i < n; i++) {
+            stepsPerSecond[i] = runs[i].stepsPerSecond;
+            p50StepMillis[i] = runs[i].p50StepMillis;
+            p99StepMillis[i] = runs[i].p99StepMillis;
+            peakHeapBytes[i] = runs[i].peakHeapBytes;
+            allocatedBytes[i] = runs[i].allocatedBytes;
+        }
+        Result median = new Result();
+        median.name = runs[0].name;
+        median.stepsPerSecond = getMedian(stepsPerSecond);
+        median.p50StepMillis = getMedian(p50StepMillis);
+        median.p99StepMillis = getMedian(p99StepMillis);
+        median.peakHeapBytes = getMedian(peakHeapBytes);
+        median.allocatedBytes = getMedian(allocatedBytes);
+        return median;
+    }
+
+    static double getMedian(double[] values) {
+        Arrays.sort(values);
+        int mid = values.length / 2;
+        return values.length % 2 == 1 ? values[mid]
+            : (values[mid - 1] + values[mid]) / 2;
+    }
+
+    static long getMedian(long[] values) {
+        Arrays.sort(values);
+        int mid = values.length / 2;
+        return values.length % 2 == 1 ? values[mid]
+            : (values[mid - 1] + values[mid]) / 2;
+    }
+
+    static String getName(int grids, int density, boolean lanePolicy,
+                          int hovMin) {
+        return String.format("grids=%d,density=%d,lanePolicy=%b,hovMin=%d",
+                             grids, density, lanePolicy, hovMin);
+    }
+
+    Result run(int grids, int density, boolean lanePolicy, int hovMin) {
+        AgentCity ac = new AgentCity(seed, grids, density, lanePolicy,
+                                     "scenario.json", 0.2, hovMin, CONFIG);
+        ac.start();
+        ac.run(warmup);
+
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long allocated = getAllocatedBytes();
+        long[] times = new long[(int)steps];
+        long start = System.nanoTime();
+        long last = start;
+        long now;
+        for (int i = 0; i < times.length; i++) {
+            ac.schedule.step(ac);
+            now = System.nanoTime();
+            times[i] = now - last;
+            last = now;
+        }
+        long elapsed = last - start;
+
+        Result result = new Result();
+        result.name = getName(grids, density, lanePolicy, hovMin);
+        result.allocatedBytes = getAllocatedBytes() - allocated;
+        result.peakHeapBytes = getPeakHeapBytes();
+        result.stepsPerSecond = times.length / (elapsed / 1e9);
+        Arrays.sort(times);
+        result.p50StepMillis = getPercentile(times, 0.50) / 1e6;
+        result.p99StepMillis = getPercentile(times, 0.99) / 1e6;
+        if (ac.fileout != null) {
+            ac.fileout.close();
+        }
+        ac.kill();
+        return result;
+    }
+
+    static long getPercentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int idx = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+    }
+
+    /** Bytes allocated so far by this thread, or -1 if the JVM cannot
+     * tell. Work done on other threads, as by two-phase stepping, is not
+     * counted.
+     */
+    static long getAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)THREADS)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    static long getPeakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    static void write(String filename, long steps, long seed, int repeats,
+                      List<Result> results) throws IOException {
+        StringBuilder sb = new StringBuilder()
+            .append("{\n")
+            .append(String.format("  \"steps\": %d,\n", steps))
+            .append(String.format("  \"seed\": %d,\n", seed))
+            .append(String.format("  \"repeats\": %d,\n", repeats))
+            .append(String.format("  \"jvm\": \"%s %s\",\n",
+                                  System.getProperty("java.vm.name"),
+                                  System.getProperty("java.vm.version")))
+            .append(String.format("  \"os\": \"%s %s %s\",\n",
+                                  System.getProperty("os.name"),
+                                  System.getProperty("os.version"),
+                                  System.getProperty("os.arch")))
+            .append(String.format("  \"processors\": %d,\n",
+                                  Runtime.getRuntime().availableProcessors()))
+            .append(String.format("  \"maxHeapBytes\": %d,\n",
+                                  Runtime.getRuntime().maxMemory()))
+            .append("  \"scenarios\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            sb.append("    ").append(results.get(i).toJson())
+                .append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        sb.append("  ]\n}\n");
+        Files.write(Paths.get(filename),
+                    sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Reads the scenarios of a file written by {@link #write}, one per
+     * line.
+     */
+    static Map<String, Result> read(String filename) throws IOException {
+        Map<String, Result> results = new HashMap<String, Result>();
+        for (String line : Files.readAllLines(Paths.get(filename),
+                                              StandardCharsets.UTF_8)) {
+            if (!line.contains("\"name\"")) continue;
+            Result result = new Result();
+            Matcher m = FIELD.matcher(line);
+            while (m.find()) {
+                String key = m.group(1);
+                String value = m.group(3) != null ? m.group(3) : m.group(2);
+                if (key.equals("name")) {
+                    result.name = value;
+                } else if (key.equals("stepsPerSecond")) {
+                    result.stepsPerSecond = Double.parseDouble(value);
+                } else if (key.equals("p50StepMillis")) {
+                    result.p50StepMillis = Double.parseDouble(value);
+                } else if (key.equals("p99StepMillis")) {
+                    result.p99StepMillis = Double.parseDouble(value);
+                } else if (key.equals("peakHeapBytes")) {
+                    result.peakHeapBytes = Long.parseLong(value);
+                } else if (key.equals("allocatedBytes")) {
+                    result.allocatedBytes = Long.parseLong(value);
+                }
+            }
+            results.put(result.name, result);
+        }
+        return results;
+    }
+
+    /** Gets a description of each scenario that regressed against the
+     * baseline by more than the threshold.
+     */
+    static List<String> compare(List<Result> results,
+                                Map<String, Result> baseline,
+                                double threshold) {
+        List<String> regressions = new ArrayList<String>();
+        for (Result result : results) {
+            Result base = baseline.get(result.name);
+            if (base == null) continue;
+            if (result.stepsPerSecond
+                < base.stepsPerSecond * (1 - threshold)) {
+                regressions.add(String.format(Locale.ROOT,
+                    "%s: %.1f steps/s, baseline %.1f",
+                    result.name, result.stepsPerSecond, base.stepsPerSecond));
+            }
+            if (result.p99StepMillis > base.p99StepMillis * (1 + threshold)) {
+                regressions.add(String.format(Locale.ROOT,
+                    "%s: p99 %.3f ms/step, baseline %.3f",
+                    result.name, result.p99StepMillis, base.p99StepMillis));
+            }
+        }
+        return regressions;
+    }
+
+    static int[] parseInts(String s) {
+        String[] parts = s.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("--steps")) {
+                steps = Long.parseLong(value);
+            } else if (arg.equals("--warmup")) {
+                warmup = Long.parseLong(value);
+            } else if (arg.equals("--seed")) {
+                seed = Long.parseLong(value);
+            } else if (arg.equals("--grids")) {
+                grids = parseInts(value);
+            } else if (arg.equals("--density")) {
+                densities = parseInts(value);
+            } else if (arg.equals("--repeats")) {
+                repeats = Integer.parseInt(value);
+                if (repeats < 1) {
+                    throw new IllegalArgumentException(
+                        "--repeats must be at least 1");
+                }
+            } else if (arg.equals("--threshold")) {
+                threshold = Double.parseDouble(value);
+            } else if (arg.equals("--baseline")) {
+                baselineFile = value;
+            } else if (arg.equals("--out")) {
+                outputFile = value;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        ScenarioBenchmark bench = new ScenarioBenchmark();
+        bench.parseArgs(args);
+        List<Result> results = new ArrayList<Result>();
+        for (int g : bench.grids) {
+            for (int d : bench.densities) {
+                for (boolean lanePolicy : bench.lanePolicies) {
+                    for (int hovMin : bench.hovMins) {
+                        Result[] runs = new Result[bench.repeats];
+                        for (int r = 0; r < runs.length; r++) {
+                            runs[r] = bench.run(g, d, lanePolicy, hovMin);
+                            System.err.println(runs[r].toJson());
+                        }
+                        results.add(getMedian(runs));
+                    }
+                }
+            }
+        }
+        write(bench.outputFile, bench.steps, bench.seed, bench.repeats,
+              results);
+        if (bench.baselineFile != null) {
+            List<String> regressions =
+                compare(results, read(bench.baselineFile), bench.threshold);
+            for (String regression : regressions) {
+                System.err.println("REGRESSION " + regression);
+            }
+            if (!regressions.isEmpty()) {
+                System.exit(1);
+            }
+        }
+    }
+}
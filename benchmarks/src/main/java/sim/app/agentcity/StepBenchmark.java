@@ -0,0 +1,26 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of one full step of the schedule on test grid worlds of
+ * several sizes and densities. Run with {@code -prof gc} for allocation
+ * rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StepBenchmark {
+
+    @Benchmark
+    public long scheduleStep(World world) {
+        world.step();
+        return world.ac.schedule.getSteps();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+
+/**
+ * Check that trips keep completing in the dispatch scenarios.
+ *
+ * <p> Each seed is run with batch dispatch, event-driven boarding and
+ * dormant IntersectionAgents, once with batched stepping and once with
+ * per-agent scheduling. A run stalls if a whole window of steps passes
+ * with Persons waiting for or riding in a Vehicle and no trip completed.
+ * Each stall is reported and the exit status is non-zero. The build runs
+ * this check in the package phase.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar sim.app.agentcity.TripProgressCheck \
+ *     [--steps 1801] [--window 300] [--seeds 1,3] [--grids 2] \
+ *     [--density 144] [--batch-steps 10]
+ * </pre>
+ */
+public class TripProgressCheck {
+
+    // Properties
+    private long steps = 1801;
+    private long window = 300;
+    private long[] seeds = {1, 3};
+    private int grids = 2;
+    private int density = 144;
+    private int batchSteps = 10;
+
+    /** Runs one scenario and returns the step of the last trip completed
+     * before a stall, or -1 if trips kept completing.
+     */
+    long run(long seed, boolean batched) {
+        ScenarioConfig config = new ScenarioConfig.Builder()
+            .dispatch(true)
+            .dispatchBatchSteps(batchSteps)
+            .eventBoarding(true)
+            .dormantIntersections(true)
+            .batchedStepping(batched)
+            .consoleOut(false)
+            .build();
+        AgentCity ac = new AgentCity(seed, grids, density, false,
+                                     "progress.json", 0.2, 1, config);
+        ac.start();
+        int trips = 0;
+        long lastTrip = 0;
+        long stalled = -1;
+        for (long s = 1; s <= steps; s++) {
+            ac.schedule.step(ac);
+            if (ac.getTripsCompleted() != trips
+                || ac.getNumTravelers() == 0) {
+                trips = ac.getTripsCompleted();
+                lastTrip = s;
+            } else if (s - lastTrip >= window) {
+                System.err.printf("Seed %d with%s batched stepping stalled "
+                                  + "at %d trips on step %d, %d travelers "
+                                  + "on step %d\n",
+                                  seed, batched ? "" : "out", trips,
+                                  lastTrip, ac.getNumTravelers(), s);
+                stalled = lastTrip;
+                break;
+            }
+        }
+        if (ac.fileout != null) {
+            ac.fileout.close();
+        }
+        ac.kill();
+        return stalled;
+    }
+
+    void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("--steps")) {
+                steps = Long.parseLong(value);
+            } else if (arg.equals("--window")) {
+                window = Long.parseLong(value);
+            } else if (arg.equals("--seeds")) {
+                String[] parts = value.split(",");
+                seeds = new long[parts.length];
+                for (int j = 0; j < parts.length; j++) {
+                    seeds[j] = Long.parseLong(parts[j].trim());
+                }
+            } else if (arg.equals("--grids")) {
+                grids = Integer.parseInt(value);
+            } else if (arg.equals("--density")) {
+                density = Integer.parseInt(value);
+            } else if (arg.equals("--batch-steps")) {
+                batchSteps = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        TripProgressCheck check = new TripProgressCheck();
+        check.parseArgs(args);
+        int stalls = 0;
+        for (long seed : check.seeds) {
+            for (boolean batched : new boolean[] {true, false}) {
+                if (check.run(seed, batched) >= 0) {
+                    stalls++;
+                }
+            }
+        }
+        System.err.printf("%d of %d dispatch runs of %d steps stalled for "
+                          + "%d steps\n", stalls, 2 * check.seeds.length,
+                          check.steps, check.window);
+        if (stalls > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 David Prentiss
+ */
+
+package sim.app.agentcity;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A test grid world shared by the benchmarks of one trial.
+ *
+ * <p> The world is built by {@link AgentCity#makeTestGrids()} and run for
+ * warmupSteps steps before measurement so that Vehicles are spread over the
+ * grid and Intersections hold reservations.
+ */
+@State(Scope.Thread)
+public class World {
+
+    // Properties
+    @Param({"1", "2", "4"})
+    public int grids;
+
+    @Param({"48", "96", "144"})
+    public int density;
+
+    @Param({"600"})
+    public int warmupSteps;
+
+    @Param({"1"})
+    public long seed;
+
+    // Variables
+    public AgentCity ac;
+
+    @Setup(Level.Trial)
+    public void build() {
+        ac = new AgentCity(seed, grids, density, false, "benchmark.json",
+                           0.2, 1);
+        ac.start();
+        for (int i = 0; i < warmupSteps; i++) {
+            ac.schedule.step(ac);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void destroy() {
+        ac.finish();
+        ac = null;
+    }
+
+    /** Runs every agent of the world for one step. */
+    public void step() {
+        ac.schedule.step(ac);
+    }
+}